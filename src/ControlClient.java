@@ -0,0 +1,123 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This class implements a simple client for the local control endpoint.
+ * Commands are collected in a buffer and sent in batches, either when the
+ * buffer fills up or when flush is called.
+ * @see ControlServer
+ */
+public class ControlClient implements Closeable {
+    SocketChannel channel;
+    ByteBuffer buffer;
+
+    /**
+     * Connects to a control server running on the local machine.
+     * @param port server's TCP port
+     * @throws IOException if the connection fails
+     */
+    public ControlClient(int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+        buffer = ByteBuffer.allocate(ControlServer.BUFFER_SIZE);
+    }
+
+    /**
+     * Sends target joint values.
+     * @param innerAngle inner arm angle
+     * @param outerAngle outer arm angle
+     * @param effectorAngle effector angle
+     * @param effectorPos effector position
+     * @throws IOException if sending fails
+     */
+    public void setJoints(double innerAngle, double outerAngle,
+                          double effectorAngle, double effectorPos) throws IOException {
+        ensureRemaining(33);
+        buffer.put(ControlServer.SET_JOINTS);
+        buffer.putDouble(innerAngle).putDouble(outerAngle)
+                .putDouble(effectorAngle).putDouble(effectorPos);
+    }
+
+    /**
+     * Sends target grabber position, solved on the server side.
+     * @param x grabber scene X coordinate
+     * @param z grabber scene Z coordinate
+     * @param angle grabber angle with respect to scene X-axis
+     * @param effectorPos effector position
+     * @param positiveElbow elbow configuration
+     * @throws IOException if sending fails
+     * @see Robot#solvePosition(double, double, double, boolean)
+     */
+    public void moveTo(double x, double z, double angle, double effectorPos,
+                       boolean positiveElbow) throws IOException {
+        ensureRemaining(34);
+        buffer.put(ControlServer.MOVE_TO);
+        buffer.putDouble(x).putDouble(z).putDouble(angle).putDouble(effectorPos);
+        buffer.put((byte) (positiveElbow ? 1 : 0));
+    }
+
+    /**
+     * Sends a grab/lay down attempt.
+     * @throws IOException if sending fails
+     */
+    public void grabLaydown() throws IOException {
+        ensureRemaining(1);
+        buffer.put(ControlServer.GRAB_LAYDOWN);
+    }
+
+    /**
+     * Sends a program to record and play.
+     * @param joints joint index of every step, see ControlServer.JOINT_*
+     * @param targets target value of every step, ignored for grab steps
+     * @throws IOException if sending fails
+     */
+    public void uploadProgram(byte[] joints, double[] targets) throws IOException {
+        ensureRemaining(5 + 9 * joints.length);
+        buffer.put(ControlServer.PROGRAM);
+        buffer.putInt(joints.length);
+        for (int i = 0; i < joints.length; i++)
+            buffer.put(joints[i]).putDouble(targets[i]);
+    }
+
+    /**
+     * Sends all buffered commands. Blocks while the server applies
+     * backpressure.
+     * @throws IOException if sending fails
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Flushes buffered commands and closes the connection.
+     * @throws IOException if sending fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes room for a command in the buffer, flushing it if needed.
+     * @param size command size in bytes
+     * @throws IOException if sending fails
+     */
+    private void ensureRemaining(int size) throws IOException {
+        if (size > buffer.capacity())
+            throw new IllegalArgumentException("Command too long");
+        if (buffer.remaining() < size)
+            flush();
+    }
+}
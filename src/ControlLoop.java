@@ -0,0 +1,202 @@
+import javafx.animation.AnimationTimer;
+import javafx.scene.input.KeyCode;
+import javafx.scene.shape.Box;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs manual robot control on its own fixed-rate thread. Held
+ * keys are integrated into joint motion and checked against joint limits
+ * at a constant rate, independent of rendering. The resulting joint state
+ * is handed to the JavaFX thread through a single-slot lock-free mailbox,
+ * where only the latest state is applied on each pulse. Checks which need
+ * the scene graph (collisions with the box and the floor) are done when
+ * applying; a rejected state is sent back to the loop the same way.
+ */
+public class ControlLoop {
+    static final int RATE = 500;
+    // jog speeds, per second
+    static final double ROTATION_SPEED = 45.0, TRANSLATION_SPEED = 0.3;
+    // jog directions, indexed by joint
+    static final KeyCode[] PLUS_KEYS = {KeyCode.W, KeyCode.Q, KeyCode.E, KeyCode.R},
+            MINUS_KEYS = {KeyCode.S, KeyCode.A, KeyCode.D, KeyCode.F};
+
+    Robot robot;
+    Box box, floor;
+    // held keys, bit 2*joint for plus and 2*joint+1 for minus direction
+    volatile int heldKeys;
+    // loop to FX thread and FX thread to loop mailboxes
+    AtomicReference<double[]> published, synced;
+    // loop thread state
+    double[] state;
+    ScheduledExecutorService executor;
+    AnimationTimer applier;
+
+    /**
+     * Initializes a ControlLoop object.
+     * @param _robot controlled robot
+     * @param _box interactive box
+     * @param _floor floor
+     */
+    public ControlLoop(Robot _robot, Box _box, Box _floor) {
+        robot = _robot;
+        box = _box;
+        floor = _floor;
+        published = new AtomicReference<>();
+        synced = new AtomicReference<>();
+        state = robot.getJointState();
+    }
+
+    /**
+     * Starts the control thread and applying its output on every pulse. This
+     * method must be called on the JavaFX application thread.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "control-loop");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick(1.0 / RATE);
+            }
+        }, 0, 1000000 / RATE, TimeUnit.MICROSECONDS);
+
+        applier = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                apply();
+            }
+        };
+        applier.start();
+    }
+
+    /**
+     * Stops the control thread.
+     */
+    public void stop() {
+        if (applier != null)
+            applier.stop();
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Starts jogging a joint, if the key is a jog key. This method must be
+     * called on the JavaFX application thread.
+     * @param code pressed key
+     * @return true if the key is a jog key, false otherwise
+     */
+    public boolean press(KeyCode code) {
+        int bit = keyBit(code);
+        if (bit == 0)
+            return false;
+        // start from the robot's actual position, it may have been moved
+        // by something else since the last jog
+        if (heldKeys == 0)
+            sync();
+        heldKeys |= bit;
+        return true;
+    }
+
+    /**
+     * Stops jogging a joint, if the key is a jog key. This method must be
+     * called on the JavaFX application thread.
+     * @param code released key
+     * @return true if the key is a jog key, false otherwise
+     */
+    public boolean release(KeyCode code) {
+        int bit = keyBit(code);
+        heldKeys &= ~bit;
+        return bit != 0;
+    }
+
+    /**
+     * Stops jogging all joints, for when key released events can no longer
+     * be relied upon, e.g. after the window lost focus. This method must be
+     * called on the JavaFX application thread.
+     * @return true if any jog key was held, false otherwise
+     */
+    public boolean releaseAll() {
+        boolean wasJogging = heldKeys != 0;
+        heldKeys = 0;
+        return wasJogging;
+    }
+
+    /**
+     * Single control step, run on the control thread.
+     * @param dt step duration in seconds
+     */
+    private void tick(double dt) {
+        // keys are read before the mailbox, so that a sync posted together
+        // with a key press is always seen
+        int keys = heldKeys;
+        double[] correction = synced.getAndSet(null);
+        if (correction != null)
+            state = correction;
+        if (keys == 0)
+            return;
+
+        double[] next = state.clone();
+        for (int joint = 0; joint < 4; joint++) {
+            int dir = ((keys >> 2*joint) & 1) - ((keys >> (2*joint + 1)) & 1);
+            if (dir == 0)
+                continue;
+            double previous = next[joint];
+            next[joint] += dir * dt * (joint == 3 ? TRANSLATION_SPEED : ROTATION_SPEED);
+            // stop only the joint that hit its limit
+            if (!robot.isPositionLegal(next[0], next[1], next[2], next[3]))
+                next[joint] = previous;
+        }
+        if (!Arrays.equals(next, state)) {
+            state = next;
+            published.set(next.clone());
+        }
+    }
+
+    /**
+     * Applies the latest state published by the control thread, run on the
+     * JavaFX application thread.
+     */
+    private void apply() {
+        double[] next = published.getAndSet(null);
+        // states published after all keys were released are stale - the
+        // robot stays where it was when the last key went up
+        if (next == null || heldKeys == 0)
+            return;
+        double[] previous = robot.getJointState();
+        robot.setJointState(next[0], next[1], next[2], next[3]);
+        if (!robot.isPositionLegal(box, floor)) {
+            robot.setJointState(previous[0], previous[1], previous[2], previous[3]);
+            sync();
+        }
+    }
+
+    /**
+     * Sends the robot's current position to the control thread.
+     */
+    private void sync() {
+        synced.set(robot.getJointState());
+    }
+
+    /**
+     * Maps a jog key onto its bit in heldKeys.
+     * @param code key
+     * @return key bit, 0 if the key isn't a jog key
+     */
+    private static int keyBit(KeyCode code) {
+        for (int joint = 0; joint < 4; joint++) {
+            if (PLUS_KEYS[joint] == code)
+                return 1 << 2*joint;
+            if (MINUS_KEYS[joint] == code)
+                return 1 << (2*joint + 1);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,396 @@
+import javafx.animation.AnimationTimer;
+import javafx.scene.shape.Box;
+import javafx.scene.transform.Rotate;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class implements a local control endpoint for the robot. A single
+ * non-blocking selector thread reads commands from loopback TCP clients
+ * into a bounded queue, which is drained and applied on each JavaFX pulse.
+ * When the queue is full, reading from clients is suspended until there is
+ * room again, so that fast clients are throttled by TCP flow control.
+ * While a program is playing, commands are left waiting in the queue and
+ * applied in order once it finishes, so no command, including another
+ * program upload, is lost.
+ *
+ * Every command starts with a single opcode byte, multi-byte values are
+ * big-endian:
+ *  SET_JOINTS    - inner angle, outer angle, effector angle, effector
+ *                  position (4 doubles)
+ *  MOVE_TO       - grabber X, Z, angle, effector position (4 doubles) and
+ *                  elbow configuration (byte, non-zero for positive)
+ *  GRAB_LAYDOWN  - no arguments
+ *  PROGRAM       - step count (int), then for every step joint index (byte,
+ *                  see JOINT_* constants) and target value (double); the
+ *                  program is recorded and played as soon as no other
+ *                  program is playing, unless some step leaves the
+ *                  robot's bounds
+ * @see ControlClient
+ */
+public class ControlServer {
+    public static final byte SET_JOINTS = 1, MOVE_TO = 2, GRAB_LAYDOWN = 3, PROGRAM = 4;
+    public static final byte JOINT_INNER = 0, JOINT_OUTER = 1, JOINT_EFFECTOR_ANGLE = 2,
+            JOINT_EFFECTOR_POS = 3, JOINT_GRAB = 4;
+    static final int QUEUE_CAPACITY = 4096, BUFFER_SIZE = 1 << 16;
+
+    Robot robot;
+    Recorder recorder;
+    Box box, floor;
+    Rotate boxRotate;
+    BlockingQueue<Command> commands;
+    Selector selector;
+    ServerSocketChannel serverChannel;
+    Thread ioThread;
+    AnimationTimer pulse;
+    volatile boolean isRunning;
+
+    /**
+     * Initializes a ControlServer object. The server doesn't accept any
+     * connections until started.
+     * @param _robot controlled robot
+     * @param _recorder recorder used for program playback
+     * @param _box interactive box
+     * @param _boxRotate interactive box's rotate transform
+     * @param _floor floor
+     */
+    public ControlServer(Robot _robot, Recorder _recorder, Box _box,
+                         Rotate _boxRotate, Box _floor) {
+        robot = _robot;
+        recorder = _recorder;
+        box = _box;
+        boxRotate = _boxRotate;
+        floor = _floor;
+        commands = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+
+    /**
+     * Starts accepting connections on the loopback interface. This method
+     * must be called on the JavaFX application thread.
+     * @param port TCP port to listen on, 0 for any free port
+     * @return port the server is listening on
+     * @throws IOException if the socket can't be opened
+     */
+    public int start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        isRunning = true;
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "control-server");
+        ioThread.setDaemon(true);
+        ioThread.start();
+
+        pulse = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                applyCommands();
+            }
+        };
+        pulse.start();
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public void stop() {
+        isRunning = false;
+        if (pulse != null)
+            pulse.stop();
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    /**
+     * Selector thread main loop.
+     */
+    private void serve() {
+        try {
+            while (isRunning) {
+                selector.select();
+                // resume clients suspended because of a full queue
+                for (SelectionKey key : selector.keys())
+                    if (commands.remainingCapacity() > 0 && key.isValid() &&
+                            key.interestOps() == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        queueCommands(key);
+                    }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel client = serverChannel.accept();
+                        if (client == null)
+                            continue;
+                        client.configureBlocking(false);
+                        client.register(selector, SelectionKey.OP_READ,
+                                ByteBuffer.allocate(BUFFER_SIZE));
+                    }
+                    else if (key.isReadable())
+                        readCommands(key);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Control server failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys())
+                closeQuietly(key.channel());
+            closeQuietly(selector);
+        }
+    }
+
+    /**
+     * Reads available data from a client and queues all complete commands.
+     * @param key client's selection key
+     */
+    private void readCommands(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        try {
+            if (client.read((ByteBuffer) key.attachment()) < 0) {
+                key.cancel();
+                client.close();
+                return;
+            }
+        } catch (IOException e) {
+            key.cancel();
+            closeQuietly(client);
+            return;
+        }
+        queueCommands(key);
+    }
+
+    /**
+     * Queues all complete commands already read from a client. If the queue
+     * fills up, the client is suspended and the rest of its data is kept in
+     * its buffer. A client sending malformed data is disconnected, the
+     * other clients are served on.
+     * @param key client's selection key
+     */
+    private void queueCommands(SelectionKey key) {
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                Command command = parseCommand(buffer);
+                if (command == null) {
+                    buffer.position(start);
+                    break;
+                }
+                if (!commands.offer(command)) {
+                    // queue full - stop reading from this client until it drains
+                    buffer.position(start);
+                    key.interestOps(0);
+                    break;
+                }
+            }
+            buffer.compact();
+        } catch (RuntimeException e) {
+            // malformed data or any other failure only drops this client
+            System.err.println("Control client dropped: " + e.getMessage());
+            key.cancel();
+            closeQuietly(key.channel());
+        }
+    }
+
+    /**
+     * Parses a single command from the buffer.
+     * @param buffer buffer to read from
+     * @return parsed command, or null if the buffer doesn't contain a whole
+     *         command yet
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    private static Command parseCommand(ByteBuffer buffer) {
+        byte opcode = buffer.get();
+        switch (opcode) {
+            case SET_JOINTS:
+                if (buffer.remaining() < 32)
+                    return null;
+                return new Command(opcode, new double[] {buffer.getDouble(),
+                        buffer.getDouble(), buffer.getDouble(), buffer.getDouble()}, null);
+            case MOVE_TO:
+                if (buffer.remaining() < 33)
+                    return null;
+                return new Command(opcode, new double[] {buffer.getDouble(),
+                        buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                        buffer.get()}, null);
+            case GRAB_LAYDOWN:
+                return new Command(opcode, null, null);
+            case PROGRAM:
+                if (buffer.remaining() < 4)
+                    return null;
+                int count = buffer.getInt();
+                // compared without multiplying, which could overflow
+                if (count < 0 || count > (BUFFER_SIZE - 5) / 9)
+                    throw new IllegalArgumentException("Program too long");
+                if (buffer.remaining() < 9 * count)
+                    return null;
+                double[] targets = new double[count];
+                byte[] joints = new byte[count];
+                for (int i = 0; i < count; i++) {
+                    joints[i] = buffer.get();
+                    targets[i] = buffer.getDouble();
+                    if (joints[i] < JOINT_INNER || joints[i] > JOINT_GRAB)
+                        throw new IllegalArgumentException("Unknown joint");
+                }
+                return new Command(opcode, targets, joints);
+            default:
+                throw new IllegalArgumentException("Unknown opcode");
+        }
+    }
+
+    /**
+     * Applies all queued commands, up to the first program, which is played
+     * before any further commands are applied. Consecutive joint commands
+     * are coalesced, so that the robot is only updated once per pulse no
+     * matter how many samples arrived. This method is called on the JavaFX
+     * application thread.
+     */
+    private void applyCommands() {
+        double[] target = null;
+        boolean isDrained = false;
+        Command command;
+        // commands wait in the queue while a program is playing
+        while (!recorder.isPlaying() && (command = commands.poll()) != null) {
+            isDrained = true;
+            switch (command.opcode) {
+                case SET_JOINTS:
+                    if (robot.isPositionLegal(command.values[0], command.values[1],
+                            command.values[2], command.values[3]))
+                        target = command.values;
+                    break;
+                case MOVE_TO:
+                    double[] solution = robot.solvePosition(command.values[0],
+                            command.values[1], command.values[2], command.values[4] != 0.0);
+                    if (solution != null && robot.isPositionLegal(solution[0],
+                            solution[1], solution[2], command.values[3]))
+                        target = new double[] {solution[0], solution[1],
+                                solution[2], command.values[3]};
+                    break;
+                case GRAB_LAYDOWN:
+                    applyTarget(target);
+                    target = null;
+                    robot.attemptGrabLaydown(box, boxRotate, floor, null);
+                    break;
+                case PROGRAM:
+                    applyTarget(target);
+                    target = null;
+                    playProgram(command);
+                    break;
+            }
+        }
+        applyTarget(target);
+        // let the selector thread resume suspended clients
+        if (isDrained)
+            selector.wakeup();
+    }
+
+    /**
+     * Moves the robot to a joint configuration, unless it would collide with
+     * the box or the floor.
+     * @param target joint configuration, null for no move
+     */
+    private void applyTarget(double[] target) {
+        if (target == null)
+            return;
+        double[] previous = robot.getJointState();
+        robot.setJointState(target[0], target[1], target[2], target[3]);
+        if (!robot.isPositionLegal(box, floor))
+            robot.setJointState(previous[0], previous[1], previous[2], previous[3]);
+    }
+
+    /**
+     * Records and plays an uploaded program, unless some step leaves the
+     * robot's bounds.
+     * @param command PROGRAM command
+     */
+    private void playProgram(Command command) {
+        // joint positions after every step, checked all at once
+        int count = command.joints.length;
+        double[] state = robot.getJointState();
+        double[][] positions = new double[4][count];
+        for (int i = 0; i < count; i++) {
+            if (command.joints[i] != JOINT_GRAB)
+                state[command.joints[i]] = command.values[i];
+            for (int joint = 0; joint < 4; joint++)
+                positions[joint][i] = state[joint];
+        }
+        long[] legal = robot.arePositionsLegal(positions[0], positions[1],
+                positions[2], positions[3], count);
+        for (int i = 0; i < count; i++) {
+            if ((legal[i / 64] & (1L << (i % 64))) == 0) {
+                System.err.println("Uploaded program rejected: step " + (i + 1) +
+                        " leaves the robot's bounds");
+                return;
+            }
+        }
+
+        recorder.doRecord(robot, box, boxRotate);
+        for (int i = 0; i < command.joints.length; i++) {
+            switch (command.joints[i]) {
+                case JOINT_INNER:
+                    recorder.addPos(robot.innerAngleProperty(), command.values[i]);
+                    break;
+                case JOINT_OUTER:
+                    recorder.addPos(robot.outerAngleProperty(), command.values[i]);
+                    break;
+                case JOINT_EFFECTOR_ANGLE:
+                    recorder.addPos(robot.effectorAngleProperty(), command.values[i]);
+                    break;
+                case JOINT_EFFECTOR_POS:
+                    recorder.addPos(robot.effectorPosProperty(), command.values[i]);
+                    break;
+                case JOINT_GRAB:
+                    recorder.addPos(null);
+                    break;
+            }
+        }
+        recorder.stopAll();
+        recorder.doPlay(robot, box, boxRotate, floor);
+    }
+
+    /**
+     * Closes a channel or selector, ignoring errors.
+     * @param closeable object to close
+     */
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing sensible left to do
+        }
+    }
+
+    /**
+     * Single decoded command.
+     */
+    private static class Command {
+        byte opcode;
+        double[] values;
+        byte[] joints;
+
+        Command(byte _opcode, double[] _values, byte[] _joints) {
+            opcode = _opcode;
+            values = _values;
+            joints = _joints;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.beans.property.DoubleProperty;
+import javafx.scene.transform.Rotate;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class profiles a saved program's cycle time. The program is played
+ * back without any window, on a manually advanced simulation clock, and
+ * the time between the starts of consecutive steps is attributed to the
+ * step started first: to the joint move, grab attempt or the fall of a
+ * laid down box, and to any idle gap left once the move or fall was over.
+ *
+ * Results are printed as a report of step types and the longest steps,
+ * sorted by time, and written in the folded stacks format read by flame
+ * graph tools, one line per step: program;type;step milliseconds.
+ *
+ * Usage: CycleProfiler [--top=N] [--folded=FILE] PROGRAM
+ * The folded stacks are written to PROGRAM.folded by default.
+ * @see Recorder#saveProgram(java.io.File, Robot)
+ */
+public class CycleProfiler {
+    static final int DEFAULT_TOP = 20;
+    // longest simulated time to advance by at once, in ticks
+    static final long MAX_ADVANCE = 60000;
+
+    Workcell workcell;
+    Robot robot;
+    SimulationClock clock;
+    List<Step> steps;
+    Step current;
+    double startTime, endTime;
+
+    /**
+     * Initializes a CycleProfiler object.
+     */
+    public CycleProfiler() {
+        workcell = new Workcell();
+        robot = workcell.getRobot();
+        clock = workcell.getClock();
+        steps = new ArrayList<>();
+    }
+
+    /**
+     * Plays a program to the end, timing each of its steps.
+     * @param program program file
+     * @throws IOException if loading fails
+     * @throws IllegalStateException if playback stalls
+     */
+    public void profile(File program) throws IOException {
+        final Recorder recorder = workcell.getRecorder();
+        recorder.loadProgram(program, robot);
+        steps.clear();
+        current = null;
+        startTime = clock.getTime();
+        recorder.setOnStep(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                finishStep();
+                startStep(recorder.getCurrentStep());
+            }
+        });
+        recorder.doPlay(robot, workcell.getBox(), workcell.getBoxRotate(), workcell.getFloor());
+        // called right away if the program is empty
+        recorder.setOnPlayFinished(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                finishStep();
+                endTime = clock.getTime();
+            }
+        });
+        while (recorder.isPlaying()) {
+            if (clock.isIdle())
+                throw new IllegalStateException("Playback stalled at step " +
+                        recorder.getPlayedSteps() + ", " + (clock.getTime() - startTime) + " ms");
+            clock.advance(MAX_ADVANCE);
+        }
+        recorder.setOnStep(null);
+        recorder.setOnPlayFinished(null);
+    }
+
+    /**
+     * Starts timing a step, noting how long its motion is going to take.
+     * @param target step about to be played
+     */
+    private void startStep(DoublePropertyTarget target) {
+        current = new Step();
+        current.index = steps.size() + 1;
+        current.start = clock.getTime();
+        DoubleProperty property = target.getProperty();
+        if (property == null) {
+            current.wasGrabbed = robot.isBoxGrabbed();
+            // a laid down box falls to the ground before playback goes on
+            if (current.wasGrabbed)
+                current.motion = toTicks(robot.getFallDuration());
+            return;
+        }
+        current.joint = (property == robot.innerAngleProperty()) ? "inner" :
+                (property == robot.outerAngleProperty()) ? "outer" :
+                (property == robot.effectorAngleProperty()) ? "effectorAngle" : "effectorPos";
+        current.from = property.get();
+        current.target = target.getTarget();
+        current.motion = toTicks(Recorder.getStepDuration(
+                property.getBean() instanceof Rotate, current.from - current.target));
+    }
+
+    /**
+     * Finishes timing the current step, if any.
+     */
+    private void finishStep() {
+        if (current == null)
+            return;
+        current.elapsed = clock.getTime() - current.start;
+        if (current.joint != null)
+            current.type = "move " + current.joint;
+        else if (current.wasGrabbed && !robot.isBoxGrabbed())
+            current.type = "lay down";
+        else if (!current.wasGrabbed && robot.isBoxGrabbed())
+            current.type = "grab";
+        else
+            current.type = "grab missed";
+        steps.add(current);
+        current = null;
+    }
+
+    /**
+     * Rounds a duration to whole ticks, the same way the simulation clock
+     * does.
+     * @param duration duration in milliseconds
+     * @return rounded duration in milliseconds
+     */
+    private static double toTicks(double duration) {
+        return Math.round(duration / SimulationClock.TICK) * SimulationClock.TICK;
+    }
+
+    /**
+     * Retrieves the profiled cycle time.
+     * @return cycle time in milliseconds
+     */
+    public double getCycleTime() {
+        return endTime - startTime;
+    }
+
+    /**
+     * Prints the time taken by each step type and the longest steps, both
+     * sorted by time.
+     * @param out stream to print to
+     * @param top number of longest steps to print
+     */
+    public void printReport(PrintStream out, int top) {
+        double cycleTime = getCycleTime();
+        out.printf("Cycle time: %.3f s, %d steps%n%n", cycleTime / 1000.0, steps.size());
+
+        // totals by step type, idle gaps counted separately
+        final Map<String, double[]> types = new HashMap<>();
+        for (Step step : steps) {
+            addToType(types, step.type, step.elapsed - step.getIdle());
+            if (step.getIdle() > 0.0)
+                addToType(types, "idle", step.getIdle());
+        }
+        List<String> typeNames = new ArrayList<>(types.keySet());
+        Collections.sort(typeNames, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(types.get(b)[1], types.get(a)[1]);
+            }
+        });
+        out.printf("%-20s %7s %12s %7s%n", "Type", "Count", "Time [ms]", "%");
+        for (String type : typeNames)
+            out.printf("%-20s %7d %12.0f %7.2f%n", type, (long) types.get(type)[0],
+                    types.get(type)[1], percent(types.get(type)[1], cycleTime));
+        if (!types.containsKey("idle"))
+            out.println("No idle gaps between steps");
+
+        List<Step> longest = new ArrayList<>(steps);
+        Collections.sort(longest, new Comparator<Step>() {
+            @Override
+            public int compare(Step a, Step b) {
+                return Double.compare(b.elapsed, a.elapsed);
+            }
+        });
+        out.printf("%nLongest steps:%n%7s  %-36s %12s %7s%n", "Step", "", "Time [ms]", "%");
+        for (Step step : longest.subList(0, Math.min(top, longest.size())))
+            out.printf("%7d  %-36s %12.0f %7.2f%n", step.index, step.describe(),
+                    step.elapsed, percent(step.elapsed, cycleTime));
+    }
+
+    /**
+     * Writes each step's time as folded stacks, program;type;step, skipping
+     * steps that took no time.
+     * @param file file to write to
+     * @param programName name of the profiled program, used as root frame
+     * @throws IOException if writing fails
+     */
+    public void writeFolded(File file, String programName) throws IOException {
+        // frames are separated by semicolons
+        String root = programName.replace(';', '_');
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (Step step : steps) {
+                String frame = "#" + step.index + " " + step.describe();
+                long active = Math.round(step.elapsed - step.getIdle());
+                if (active > 0)
+                    out.println(root + ";" + step.type + ";" + frame + " " + active);
+                if (Math.round(step.getIdle()) > 0)
+                    out.println(root + ";idle;after " + frame + " " + Math.round(step.getIdle()));
+            }
+            if (out.checkError())
+                throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /**
+     * Adds a step's time to its type's count and total.
+     * @param types count and total time by type
+     * @param type step type
+     * @param time time in milliseconds
+     */
+    private static void addToType(Map<String, double[]> types, String type, double time) {
+        double[] total = types.get(type);
+        if (total == null) {
+            total = new double[2];
+            types.put(type, total);
+        }
+        total[0]++;
+        total[1] += time;
+    }
+
+    /**
+     * Computes a percentage of the cycle time.
+     * @param time time in milliseconds
+     * @param cycleTime cycle time in milliseconds
+     * @return percentage, 0 for an empty cycle
+     */
+    private static double percent(double time, double cycleTime) {
+        return (cycleTime > 0.0) ? 100.0 * time / cycleTime : 0.0;
+    }
+
+    /**
+     * Timing of a single played step.
+     */
+    private static class Step {
+        int index;
+        String type, joint;
+        double from, target, start, motion, elapsed;
+        boolean wasGrabbed;
+
+        /**
+         * Retrieves the time left between the end of the step's motion and
+         * the start of the next step.
+         * @return idle time in milliseconds
+         */
+        double getIdle() {
+            return Math.max(0.0, elapsed - motion);
+        }
+
+        /**
+         * Describes the step for reports.
+         * @return description
+         */
+        String describe() {
+            if (joint == null)
+                return type;
+            return String.format(Locale.ROOT, "%s %.2f -> %.2f", joint, from, target);
+        }
+    }
+
+    /**
+     * Profiles a program and prints the report.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        int top = DEFAULT_TOP;
+        String program = null, folded = null;
+        boolean isValid = true;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--top="))
+                    top = Integer.parseInt(arg.substring("--top=".length()));
+                else if (arg.startsWith("--folded="))
+                    folded = arg.substring("--folded=".length());
+                else if (program == null && !arg.startsWith("--"))
+                    program = arg;
+                else
+                    isValid = false;
+            }
+        } catch (NumberFormatException e) {
+            isValid = false;
+        }
+        if (!isValid || program == null || top < 0) {
+            System.err.println("Usage: CycleProfiler [--top=N] [--folded=FILE] PROGRAM");
+            System.exit(2);
+        }
+        File programFile = new File(program);
+        try {
+            CycleProfiler profiler = new CycleProfiler();
+            profiler.profile(programFile);
+            profiler.printReport(System.out, top);
+            File foldedFile = new File((folded == null) ? program + ".folded" : folded);
+            profiler.writeFolded(foldedFile, programFile.getName());
+            System.out.println("\nFolded stacks written to " + foldedFile);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Profiling failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import javafx.application.Application;
+import javafx.application.ConditionalFeature;
+import javafx.application.Platform;
+import javafx.scene.*;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Stage;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class renders a saved program to a PNG image sequence without
+ * showing any window. The simulation is advanced on its clock by exactly
+ * one frame at a time and snapshotted from a scene that's never shown,
+ * while PNG encoding runs in parallel on a worker pool. Only a few frames
+ * are kept in memory at once - rendering waits for encoding when needed.
+ * Snapshots are rendered by the default pipeline, which has to support 3D;
+ * the software pipeline doesn't, so the export fails rather than writing
+ * frames without the robot.
+ *
+ * Usage: FrameExporter [--fps=N] [--width=N] [--height=N] PROGRAM OUTPUT_DIR
+ * Exits with a non-zero status if the export fails.
+ * @see Recorder#saveProgram(java.io.File, Robot)
+ */
+public class FrameExporter extends Application {
+    static final int DEFAULT_FPS = 30, DEFAULT_SIZE = 500;
+    // process exit status, set before the application exits
+    static volatile int exitStatus = 0;
+
+    int width, height, threads;
+    BlockingQueue<int[]> freeBuffers;
+    ExecutorService encoders;
+    AtomicReference<Exception> encodeError;
+
+    /**
+     * Runs the export and exits.
+     * @param primaryStage primary stage, never shown
+     */
+    @Override
+    public void start(Stage primaryStage) {
+        Map<String, String> named = getParameters().getNamed();
+        List<String> unnamed = getParameters().getUnnamed();
+        if (unnamed.size() != 2) {
+            System.err.println("Usage: FrameExporter [--fps=N] [--width=N] " +
+                    "[--height=N] PROGRAM OUTPUT_DIR");
+            exitStatus = 2;
+            Platform.exit();
+            return;
+        }
+        try {
+            export(primaryStage, new File(unnamed.get(0)), new File(unnamed.get(1)),
+                    parseInt(named.get("fps"), DEFAULT_FPS),
+                    parseInt(named.get("width"), DEFAULT_SIZE),
+                    parseInt(named.get("height"), DEFAULT_SIZE));
+        } catch (Exception e) {
+            System.err.println("Export failed: " + e.getMessage());
+            exitStatus = 1;
+        }
+        Platform.exit();
+    }
+
+    /**
+     * Renders a program to PNG files named frame_000000.png and so on.
+     * @param stage stage to host the rendered scene, never shown
+     * @param program program file
+     * @param outputDir directory to write frames to
+     * @param fps frames per second of simulation time
+     * @param _width frame width
+     * @param _height frame height
+     * @throws Exception if loading, rendering or encoding fails
+     */
+    private void export(Stage stage, File program, File outputDir, int fps,
+                        int _width, int _height) throws Exception {
+        if (!Platform.isSupported(ConditionalFeature.SCENE3D))
+            throw new IllegalStateException("3D rendering isn't supported by the " +
+                    "graphics pipeline in use");
+        width = _width;
+        height = _height;
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IOException("Can't create " + outputDir);
+
+        Workcell workcell = new Workcell();
+        Recorder recorder = workcell.getRecorder();
+        SimulationClock clock = workcell.getClock();
+        recorder.loadProgram(program, workcell.getRobot());
+        SubScene subScene = workcell.createSubScene(width, height, SceneAntialiasing.BALANCED);
+        // the stage is never shown, it just hosts the SubScene
+        stage.setScene(new Scene(new Group(subScene)));
+
+        // bounded pool of pixel buffers handed between rendering and encoding
+        threads = Runtime.getRuntime().availableProcessors();
+        freeBuffers = new ArrayBlockingQueue<>(2 * threads);
+        for (int i = 0; i < 2 * threads; i++)
+            freeBuffers.add(new int[width * height]);
+        encoders = Executors.newFixedThreadPool(threads);
+        encodeError = new AtomicReference<>();
+
+        long startTime = System.nanoTime(), ticks = 0;
+        int frame = 0;
+        WritableImage image = new WritableImage(width, height);
+        recorder.doPlay(workcell.getRobot(), workcell.getBox(),
+                workcell.getBoxRotate(), workcell.getFloor());
+        try {
+            while (true) {
+                image = subScene.snapshot(null, image);
+                submitFrame(image, new File(outputDir, String.format("frame_%06d.png", frame)));
+                if (!recorder.isPlaying() || encodeError.get() != null)
+                    break;
+                if (clock.isIdle())
+                    throw new IllegalStateException("Playback stalled at " +
+                            clock.getTime() + " ms");
+                frame++;
+                long nextTicks = Math.round(frame * 1000.0 / fps / SimulationClock.TICK);
+                clock.advance(nextTicks - ticks);
+                ticks = nextTicks;
+            }
+        } finally {
+            encoders.shutdown();
+            encoders.awaitTermination(1, TimeUnit.HOURS);
+        }
+        if (encodeError.get() != null)
+            throw encodeError.get();
+
+        double wallTime = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Exported %d frames (%.1f s of simulation) in %.1f s, %.1f frames/s%n",
+                frame + 1, clock.getTime() / 1000.0, wallTime, (frame + 1) / wallTime);
+    }
+
+    /**
+     * Copies a rendered frame into a free pixel buffer and queues it for
+     * encoding. Blocks while all buffers are in use.
+     * @param image rendered frame
+     * @param file file to write the frame to
+     * @throws InterruptedException if interrupted while waiting for a buffer
+     */
+    private void submitFrame(WritableImage image, final File file) throws InterruptedException {
+        final int[] pixels = freeBuffers.take();
+        image.getPixelReader().getPixels(0, 0, width, height,
+                PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        encoders.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                    frame.setRGB(0, 0, width, height, pixels, 0, width);
+                    if (!ImageIO.write(frame, "png", file))
+                        throw new IOException("No PNG encoder available");
+                } catch (Exception e) {
+                    encodeError.compareAndSet(null, e);
+                } finally {
+                    freeBuffers.add(pixels);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses an optional integer parameter.
+     * @param value parameter value, may be null
+     * @param defaultValue value to use if the parameter wasn't given
+     * @return parsed value
+     */
+    private static int parseInt(String value, int defaultValue) {
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Launches the export and exits with its status.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        launch(args);
+        System.exit(exitStatus);
+    }
+}
@@ -0,0 +1,81 @@
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * This class plays a saved program without the JavaFX application toolkit
+ * or any window, which makes for the fastest way to check a program's
+ * outcome and cycle time. The simulation clock is advanced manually from
+ * one motion end to the next.
+ *
+ * The scene graph is still built, since the robot's kinematics and
+ * collision checks live in its transforms and shapes. It's never rendered,
+ * but creating the first 3D shape initializes the graphics pipeline to
+ * check for 3D support, which makes up most of startup time - several
+ * hundred milliseconds. On hosts without OpenGL this also logs a failed
+ * library load and a warning per shape; the results aren't affected. Time
+ * spent building the scene is reported separately for that reason.
+ *
+ * Usage: Headless PROGRAM
+ * @see Recorder#saveProgram(java.io.File, Robot)
+ */
+public class Headless {
+    // longest simulated time to advance by at once, in ticks
+    static final long MAX_ADVANCE = 60000;
+
+    /**
+     * Plays a program and prints its cycle time and final box position.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: Headless PROGRAM");
+            System.exit(2);
+        }
+        long startTime = System.nanoTime();
+        Workcell workcell = new Workcell();
+        long builtTime = System.nanoTime();
+        Recorder recorder = workcell.getRecorder();
+        final SimulationClock clock = workcell.getClock();
+        try {
+            recorder.loadProgram(new File(args[0]), workcell.getRobot());
+        } catch (Exception e) {
+            System.err.println("Loading failed: " + e.getMessage());
+            System.exit(1);
+        }
+        long readyTime = System.nanoTime();
+        long sinceJvmStart = System.currentTimeMillis() -
+                ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        // clock time gets advanced past the end of playback
+        final double[] endTime = new double[1];
+        recorder.setOnPlayFinished(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                endTime[0] = clock.getTime();
+            }
+        });
+        recorder.doPlay(workcell.getRobot(), workcell.getBox(),
+                workcell.getBoxRotate(), workcell.getFloor());
+        while (recorder.isPlaying()) {
+            if (clock.isIdle()) {
+                System.err.println("Playback stalled at " + clock.getTime() + " ms");
+                System.exit(1);
+            }
+            clock.advance(MAX_ADVANCE);
+        }
+        long playedTime = System.nanoTime();
+
+        System.out.printf("Cycle time: %.3f s%n", endTime[0] / 1000.0);
+        System.out.printf("Box: x=%.4f z=%.4f angle=%.2f%s%n",
+                workcell.getBox().getTranslateX(), workcell.getBox().getTranslateZ(),
+                workcell.getBoxRotate().getAngle(),
+                workcell.getBox().isVisible() ? "" : " (held)");
+        System.out.printf("Startup: %d ms from JVM start, %d ms to build the scene " +
+                        "(including graphics pipeline initialization), %d ms to load, " +
+                        "%d ms to play%n",
+                sinceJvmStart, (builtTime - startTime) / 1000000,
+                (readyTime - builtTime) / 1000000, (playedTime - readyTime) / 1000000);
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import javafx.scene.shape.Box;
+import javafx.scene.transform.Rotate;
+
+/**
+ * This class plans execution of a list of pick and place jobs. It chooses
+ * job order and elbow configurations so that total cycle time, as played
+ * back by the recorder, is minimal and emits the result as a recorder
+ * program. The search is a simulated annealing over job permutations
+ * (2-opt moves) and elbow flips, run as a fixed number of independent
+ * chains spread over all cores.
+ *
+ * Usage: JobSequencer [--iterations=N] [--seed=N] JOBS PROGRAM
+ * Plans jobs loaded from a file, starting from the default robot position,
+ * and saves the resulting program to be loaded and played back in the
+ * application.
+ * @see PickPlaceJob#loadJobs(File)
+ * @see PickPlaceJob
+ * @see Recorder
+ */
+public class JobSequencer {
+    // gap left between the grabber and the part when grabbing
+    static final double GRAB_CLEARANCE = 0.05;
+    // number of search chains, fixed so that results don't depend on the
+    // number of cores the chains are spread over
+    static final int CHAINS = 8;
+
+    Robot robot;
+    double surfaceY, travelPos;
+    int iterations;
+    long seed;
+    // joint configurations (inner, outer, effector angle, effector position)
+    // for each job and elbow, null if unreachable
+    double[][][] pickConfigs, placeConfigs;
+    Solution best;
+
+    /**
+     * Initializes a JobSequencer object.
+     * @param _robot robot to plan for
+     * @param _surfaceY scene Y coordinate of the parts' top surfaces
+     */
+    public JobSequencer(Robot _robot, double _surfaceY) {
+        robot = _robot;
+        surfaceY = _surfaceY;
+        travelPos = 0.0;
+        iterations = 100000;
+        seed = 0;
+    }
+
+    /**
+     * Sets the number of annealing iterations run by each search chain.
+     * @param _iterations number of iterations
+     */
+    public void setIterations(int _iterations) {
+        iterations = _iterations;
+    }
+
+    /**
+     * Sets the seed of the search. Searches with the same seed, jobs and
+     * starting position always give the same result.
+     * @param _seed random seed
+     */
+    public void setSeed(long _seed) {
+        seed = _seed;
+    }
+
+    /**
+     * Plans given jobs and records the resulting program. The robot's current
+     * position is used as a starting point and recorded as the program's
+     * initial position, the same way as when teaching manually.
+     * @param jobs jobs to execute
+     * @param recorder recorder to record the program with
+     * @param box interactive box
+     * @param boxRotate interactive box's rotate transform
+     * @return estimated program cycle time in milliseconds
+     * @throws IllegalArgumentException if some job can't be reached
+     */
+    public double sequence(List<PickPlaceJob> jobs, Recorder recorder,
+                           Box box, Rotate boxRotate) {
+        if (robot.isBoxGrabbed())
+            throw new IllegalStateException("Robot must not hold a box");
+        plan(jobs, robot.getJointState());
+
+        recorder.doRecord(robot, box, boxRotate);
+        double[] current = robot.getJointState();
+        for (int job : best.order) {
+            current = emitMove(recorder, current, unwrap(current,
+                    pickConfigs[job][best.pickElbows[job] ? 1 : 0], new double[4]));
+            recorder.addPos(null);
+            current = emitMove(recorder, current, unwrap(current,
+                    placeConfigs[job][best.placeElbows[job] ? 1 : 0], new double[4]));
+            recorder.addPos(null);
+        }
+        recorder.stopAll();
+        return best.cost;
+    }
+
+    /**
+     * Retrieves job execution order chosen by the last call to sequence.
+     * @return job indices in execution order
+     */
+    public int[] getOrder() {
+        return best.order.clone();
+    }
+
+    /**
+     * Solves inverse kinematics for all jobs and runs the search.
+     * @param jobs jobs to execute
+     * @param start starting joint configuration
+     */
+    private void plan(List<PickPlaceJob> jobs, final double[] start) {
+        int n = jobs.size();
+        double pickPos = robot.getEffectorPosAt(surfaceY - GRAB_CLEARANCE);
+        if (!robot.isPositionLegal(0.0, 0.0, 0.0, pickPos))
+            throw new IllegalArgumentException("Parts are out of reach");
+        pickConfigs = new double[n][2][];
+        placeConfigs = new double[n][2][];
+        for (int i = 0; i < n; i++) {
+            PickPlaceJob job = jobs.get(i);
+            for (int e = 0; e < 2; e++) {
+                pickConfigs[i][e] = toConfig(robot.solvePosition(job.getPickX(),
+                        job.getPickZ(), job.getPickAngle(), e == 1), pickPos);
+                placeConfigs[i][e] = toConfig(robot.solvePosition(job.getPlaceX(),
+                        job.getPlaceZ(), job.getPlaceAngle(), e == 1), travelPos);
+            }
+            if ((pickConfigs[i][0] == null && pickConfigs[i][1] == null) ||
+                    (placeConfigs[i][0] == null && placeConfigs[i][1] == null))
+                throw new IllegalArgumentException("Job " + i + " is out of reach");
+        }
+
+        // run independent annealing chains in parallel, keep the best one
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(CHAINS, Runtime.getRuntime().availableProcessors()));
+        List<Future<Solution>> results = new ArrayList<>();
+        for (int c = 0; c < CHAINS; c++) {
+            final long chainSeed = seed * 31 + c;
+            results.add(executor.submit(new Callable<Solution>() {
+                @Override
+                public Solution call() {
+                    return anneal(start, new Random(chainSeed));
+                }
+            }));
+        }
+        try {
+            // ties go to the lowest chain, whichever finishes first
+            best = null;
+            for (Future<Solution> result : results) {
+                Solution solution = result.get();
+                if (best == null || solution.cost < best.cost)
+                    best = solution;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Job sequencing failed", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs a single simulated annealing chain.
+     * @param start starting joint configuration
+     * @param random random number generator of this chain
+     * @return best solution found
+     */
+    private Solution anneal(double[] start, Random random) {
+        int n = pickConfigs.length;
+        Solution current = new Solution(n);
+        for (int i = 0; i < n; i++) {
+            current.order[i] = i;
+            current.pickElbows[i] = pickConfigs[i][0] == null;
+            current.placeElbows[i] = placeConfigs[i][0] == null;
+        }
+        Collections.shuffle(asList(current.order), random);
+        current.cost = cost(current, start);
+        Solution best = current.copy();
+
+        double startTemp = current.cost / (n + 1), endTemp = startTemp * 1e-4;
+        for (int it = 0; it < iterations && n > 0; it++) {
+            double temp = startTemp * Math.pow(endTemp / startTemp, (double) it / iterations);
+            Solution candidate = current.copy();
+            if (n > 1 && random.nextBoolean()) {
+                // 2-opt move - reverse a segment of the order
+                int i = random.nextInt(n), k = random.nextInt(n);
+                for (int a = Math.min(i, k), b = Math.max(i, k); a < b; a++, b--) {
+                    int tmp = candidate.order[a];
+                    candidate.order[a] = candidate.order[b];
+                    candidate.order[b] = tmp;
+                }
+            }
+            else {
+                // flip an elbow configuration, if the other one is reachable
+                int job = random.nextInt(n);
+                if (random.nextBoolean()) {
+                    if (pickConfigs[job][candidate.pickElbows[job] ? 0 : 1] == null)
+                        continue;
+                    candidate.pickElbows[job] = !candidate.pickElbows[job];
+                }
+                else {
+                    if (placeConfigs[job][candidate.placeElbows[job] ? 0 : 1] == null)
+                        continue;
+                    candidate.placeElbows[job] = !candidate.placeElbows[job];
+                }
+            }
+            candidate.cost = cost(candidate, start);
+            double delta = candidate.cost - current.cost;
+            if (delta <= 0.0 || random.nextDouble() < Math.exp(-delta / temp)) {
+                current = candidate;
+                if (current.cost < best.cost)
+                    best = current.copy();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Computes total playback time of a solution.
+     * @param solution solution to evaluate
+     * @param start starting joint configuration
+     * @return cycle time in milliseconds
+     */
+    private double cost(Solution solution, double[] start) {
+        double total = 0.0;
+        // configurations as played, unwrapped against the previous one
+        double[] current = start.clone(), pick = new double[4], place = new double[4];
+        for (int job : solution.order) {
+            unwrap(current, pickConfigs[job][solution.pickElbows[job] ? 1 : 0], pick);
+            unwrap(pick, placeConfigs[job][solution.placeElbows[job] ? 1 : 0], place);
+            total += moveDuration(current, pick) + moveDuration(pick, place) +
+                    robot.getFallDuration();
+            double[] tmp = current;
+            current = place;
+            place = tmp;
+        }
+        return total;
+    }
+
+    /**
+     * Picks the equivalent of a target configuration closest to the previous
+     * one. The inner joint has no limit, so any full turn can be skipped, and
+     * the box is square, so the effector can stop at any quarter turn from
+     * the target angle; both are moved by at most half of that.
+     * @param from previous configuration
+     * @param to target configuration
+     * @param result array to store the unwrapped target configuration in
+     * @return result
+     */
+    private static double[] unwrap(double[] from, double[] to, double[] result) {
+        result[0] = from[0] + Math.IEEEremainder(to[0] - from[0], 360.0);
+        result[1] = to[1];
+        result[2] = from[2] + Math.IEEEremainder(to[2] - from[2], 90.0);
+        result[3] = to[3];
+        return result;
+    }
+
+    /**
+     * Computes playback time of a move between two joint configurations. The
+     * effector is raised to travel height, the arms are rotated and the
+     * effector is lowered to the target position, one joint at a time.
+     * @param from starting configuration
+     * @param to target configuration
+     * @return duration in milliseconds
+     */
+    private double moveDuration(double[] from, double[] to) {
+        return Recorder.getStepDuration(false, travelPos - from[3]) +
+                Recorder.getStepDuration(true, to[0] - from[0]) +
+                Recorder.getStepDuration(true, to[1] - from[1]) +
+                Recorder.getStepDuration(true, to[2] - from[2]) +
+                Recorder.getStepDuration(false, to[3] - travelPos);
+    }
+
+    /**
+     * Records a move between two joint configurations, in the same way it's
+     * accounted for in moveDuration. The target must already be unwrapped
+     * against the starting configuration.
+     * @param recorder recorder to record the move with
+     * @param from starting configuration
+     * @param to target configuration
+     * @return target configuration
+     * @see JobSequencer#moveDuration(double[], double[])
+     */
+    private double[] emitMove(Recorder recorder, double[] from, double[] to) {
+        if (from[3] != travelPos)
+            recorder.addPos(robot.effectorPosProperty(), travelPos);
+        if (from[0] != to[0])
+            recorder.addPos(robot.innerAngleProperty(), to[0]);
+        if (from[1] != to[1])
+            recorder.addPos(robot.outerAngleProperty(), to[1]);
+        if (from[2] != to[2])
+            recorder.addPos(robot.effectorAngleProperty(), to[2]);
+        if (to[3] != travelPos)
+            recorder.addPos(robot.effectorPosProperty(), to[3]);
+        return to;
+    }
+
+    /**
+     * Extends an inverse kinematics solution with effector position.
+     * @param solution inner, outer and effector angle, or null
+     * @param effectorPos effector position
+     * @return full joint configuration, or null if solution was null
+     */
+    private static double[] toConfig(double[] solution, double effectorPos) {
+        if (solution == null)
+            return null;
+        return new double[] {solution[0], solution[1], solution[2], effectorPos};
+    }
+
+    /**
+     * Wraps an int array in a list view that writes through to it.
+     * @param array array to wrap
+     * @return list view
+     */
+    private static List<Integer> asList(final int[] array) {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return array[index];
+            }
+
+            @Override
+            public Integer set(int index, Integer element) {
+                int old = array[index];
+                array[index] = element;
+                return old;
+            }
+
+            @Override
+            public int size() {
+                return array.length;
+            }
+        };
+    }
+
+    /**
+     * Single candidate plan - job order and elbow configurations.
+     */
+    private static class Solution {
+        int[] order;
+        boolean[] pickElbows, placeElbows;
+        double cost;
+
+        Solution(int n) {
+            order = new int[n];
+            pickElbows = new boolean[n];
+            placeElbows = new boolean[n];
+        }
+
+        Solution copy() {
+            Solution copy = new Solution(order.length);
+            System.arraycopy(order, 0, copy.order, 0, order.length);
+            System.arraycopy(pickElbows, 0, copy.pickElbows, 0, order.length);
+            System.arraycopy(placeElbows, 0, copy.placeElbows, 0, order.length);
+            copy.cost = cost;
+            return copy;
+        }
+    }
+
+    /**
+     * Plans jobs from a file and saves the resulting program.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        int iterations = 100000;
+        long seed = 0;
+        List<String> files = new ArrayList<>();
+        boolean isValid = true;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--iterations="))
+                    iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+                else if (arg.startsWith("--seed="))
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                else if (arg.startsWith("--"))
+                    isValid = false;
+                else
+                    files.add(arg);
+            }
+        } catch (NumberFormatException e) {
+            isValid = false;
+        }
+        if (!isValid || files.size() != 2 || iterations < 1) {
+            System.err.println("Usage: JobSequencer [--iterations=N] [--seed=N] JOBS PROGRAM");
+            System.exit(2);
+        }
+        try {
+            List<PickPlaceJob> jobs = PickPlaceJob.loadJobs(new File(files.get(0)));
+            if (jobs.isEmpty())
+                throw new IOException("No jobs in " + files.get(0));
+            Workcell workcell = new Workcell();
+            Box box = workcell.getBox();
+            JobSequencer sequencer = new JobSequencer(workcell.getRobot(),
+                    box.getTranslateY() - box.getHeight() / 2.0);
+            sequencer.setIterations(iterations);
+            sequencer.setSeed(seed);
+            double cycleTime = sequencer.sequence(jobs, workcell.getRecorder(),
+                    box, workcell.getBoxRotate());
+            workcell.getRecorder().saveProgram(new File(files.get(1)), workcell.getRobot());
+            System.out.printf("Planned %d jobs, estimated cycle time %.3f s, order %s%n",
+                    jobs.size(), cycleTime / 1000.0, Arrays.toString(sequencer.getOrder()));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Sequencing failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
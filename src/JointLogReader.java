@@ -0,0 +1,312 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class streams joint position samples from a log file exported by a
+ * physical controller. Each sample holds a timestamp in seconds and the four
+ * joint values, in the order used by Robot.setJointState. The file is read
+ * through a fixed buffer and parsed in place, so reading doesn't allocate
+ * per row and files of any size can be read.
+ *
+ * Two formats are supported:
+ *  CSV    - one sample per line, five comma-separated numbers; lines not
+ *           starting with a number (headers, comments) are skipped
+ *  binary - the bytes "SCJL", a version int, then five little-endian
+ *           doubles per sample
+ *
+ * Logs can be converted to the more compact, faster to read binary format.
+ * Usage: JointLogReader SOURCE TARGET
+ * @see JointLogReplayer
+ */
+public class JointLogReader implements Closeable {
+    static final int MAGIC = 0x4C4A4353, VERSION = 1, HEADER_SIZE = 8;
+    static final int SAMPLE_SIZE = 5, BUFFER_SIZE = 1 << 16;
+    // no character pushed back
+    static final int NONE = -2;
+    // exactly representable powers of ten
+    static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6,
+            1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+            1e18, 1e19, 1e20, 1e21, 1e22};
+
+    RandomAccessFile file;
+    FileChannel channel;
+    ByteBuffer buffer;
+    boolean isBinary;
+    int pushedBack;
+    long line;
+
+    /**
+     * Opens a joint log, detecting its format.
+     * @param path log file
+     * @throws IOException if the file can't be opened
+     */
+    public JointLogReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+        pushedBack = NONE;
+        line = 0;
+        isBinary = fill(HEADER_SIZE) && buffer.getInt(buffer.position()) == MAGIC;
+        if (isBinary) {
+            buffer.getInt();
+            if (buffer.getInt() != VERSION) {
+                close();
+                throw new IOException("Unsupported joint log version: " + path);
+            }
+        }
+    }
+
+    /**
+     * Reads the next sample.
+     * @param sample array of at least five elements to fill with timestamp,
+     *               inner angle, outer angle, effector angle and position
+     * @return true if a sample was read, false at the end of the log
+     * @throws IOException if reading fails or the log is malformed
+     */
+    public boolean next(double[] sample) throws IOException {
+        return isBinary ? nextBinary(sample) : nextCsv(sample);
+    }
+
+    /**
+     * Closes the log.
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Converts a log to the binary format.
+     * @param source log to convert, in any format
+     * @param target binary log to write
+     * @return number of samples converted
+     * @throws IOException if reading or writing fails
+     */
+    public static long convert(File source, File target) throws IOException {
+        long samples = 0;
+        try (JointLogReader reader = new JointLogReader(source);
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            ByteBuffer outBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            outBuffer.putInt(MAGIC).putInt(VERSION);
+            double[] sample = new double[SAMPLE_SIZE];
+            while (reader.next(sample)) {
+                if (outBuffer.remaining() < 8 * SAMPLE_SIZE) {
+                    outBuffer.flip();
+                    while (outBuffer.hasRemaining())
+                        outChannel.write(outBuffer);
+                    outBuffer.clear();
+                }
+                for (double value : sample)
+                    outBuffer.putDouble(value);
+                samples++;
+            }
+            outBuffer.flip();
+            while (outBuffer.hasRemaining())
+                outChannel.write(outBuffer);
+        }
+        return samples;
+    }
+
+    /**
+     * Reads the next binary sample.
+     * @param sample array to fill
+     * @return true if a sample was read, false at the end of the log
+     * @throws IOException if reading fails or the log is truncated
+     */
+    private boolean nextBinary(double[] sample) throws IOException {
+        if (!fill(8 * SAMPLE_SIZE)) {
+            if (buffer.hasRemaining())
+                throw new IOException("Truncated joint log");
+            return false;
+        }
+        for (int i = 0; i < SAMPLE_SIZE; i++)
+            sample[i] = buffer.getDouble();
+        return true;
+    }
+
+    /**
+     * Reads the next CSV sample.
+     * @param sample array to fill
+     * @return true if a sample was read, false at the end of the log
+     * @throws IOException if reading fails or the log is malformed
+     */
+    private boolean nextCsv(double[] sample) throws IOException {
+        while (true) {
+            int c = skipBlanks();
+            if (c == -1)
+                return false;
+            line++;
+            if (!isNumberStart(c)) {
+                skipLine(c);
+                continue;
+            }
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                if (i > 0) {
+                    if (skipBlanks() != ',')
+                        throw new IOException("Expected " + SAMPLE_SIZE +
+                                " values in joint log line " + line);
+                    c = skipBlanks();
+                }
+                sample[i] = parseNumber(c);
+            }
+            skipLine(read());
+            return true;
+        }
+    }
+
+    /**
+     * Parses a decimal number, leaving the character following it to be read
+     * next. Numbers with up to 15 significant digits and moderate exponents
+     * are parsed exactly, others may differ from Double.parseDouble in the
+     * last couple of bits.
+     * @param c first character of the number
+     * @return parsed number
+     * @throws IOException if reading fails or the number is malformed
+     */
+    private double parseNumber(int c) throws IOException {
+        boolean isNegative = c == '-';
+        if (c == '-' || c == '+')
+            c = read();
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean hasDigits = false;
+        for (; c >= '0' && c <= '9'; c = read()) {
+            hasDigits = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0)
+                    digits++;
+            }
+            else
+                exponent++;
+        }
+        if (c == '.') {
+            for (c = read(); c >= '0' && c <= '9'; c = read()) {
+                hasDigits = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    exponent--;
+                }
+            }
+        }
+        if (!hasDigits)
+            throw new IOException("Malformed number in joint log line " + line);
+        if (c == 'e' || c == 'E') {
+            c = read();
+            boolean isExponentNegative = c == '-';
+            if (c == '-' || c == '+')
+                c = read();
+            if (c < '0' || c > '9')
+                throw new IOException("Malformed number in joint log line " + line);
+            int value = 0;
+            for (; c >= '0' && c <= '9'; c = read())
+                value = Math.min(value * 10 + (c - '0'), 100000);
+            exponent += isExponentNegative ? -value : value;
+        }
+        pushedBack = c;
+
+        double value;
+        if (mantissa == 0)
+            value = 0.0;
+        else if (mantissa < (1L << 53) && Math.abs(exponent) < POWERS_OF_TEN.length)
+            value = (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent] :
+                    mantissa / POWERS_OF_TEN[-exponent];
+        else
+            value = mantissa * Math.pow(10.0, exponent);
+        return isNegative ? -value : value;
+    }
+
+    /**
+     * Checks whether or not a character can start a number.
+     * @param c character
+     * @return true if it can, false otherwise
+     */
+    private static boolean isNumberStart(int c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+    }
+
+    /**
+     * Skips spaces and tabs.
+     * @return first other character, -1 at the end of the log
+     * @throws IOException if reading fails
+     */
+    private int skipBlanks() throws IOException {
+        int c = read();
+        while (c == ' ' || c == '\t')
+            c = read();
+        return c;
+    }
+
+    /**
+     * Skips the rest of the current line.
+     * @param c current character
+     * @throws IOException if reading fails
+     */
+    private void skipLine(int c) throws IOException {
+        while (c != '\n' && c != -1)
+            c = read();
+    }
+
+    /**
+     * Reads a single character.
+     * @return character, -1 at the end of the log
+     * @throws IOException if reading fails
+     */
+    private int read() throws IOException {
+        if (pushedBack != NONE) {
+            int c = pushedBack;
+            pushedBack = NONE;
+            return c;
+        }
+        if (!fill(1))
+            return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Makes sure that the buffer holds at least the given number of bytes.
+     * @param count number of bytes
+     * @return true if it does, false if the end of the log came first
+     * @throws IOException if reading fails
+     */
+    private boolean fill(int count) throws IOException {
+        if (buffer.remaining() >= count)
+            return true;
+        buffer.compact();
+        while (buffer.position() < count) {
+            if (channel.read(buffer) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= count;
+    }
+
+    /**
+     * Converts a log given on the command line to the binary format.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: JointLogReader SOURCE TARGET");
+            System.exit(2);
+        }
+        try {
+            long samples = convert(new File(args[0]), new File(args[1]));
+            System.out.println("Converted " + samples + " samples to " + args[1]);
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import javafx.animation.AnimationTimer;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class replays a joint log on the robot, as a digital twin of a
+ * physical controller. A background thread parses the log into a bounded
+ * single-producer/single-consumer ring of samples, staying ahead of replay
+ * without ever holding the whole log in memory. On every pulse the robot is
+ * moved to the log's position at the current simulation time, interpolated
+ * between the two surrounding samples; all older samples are dropped, so
+ * logs sampled much faster than the frame rate cost nothing to render.
+ * @see JointLogReader
+ */
+public class JointLogReplayer {
+    static final int RING_CAPACITY = 1 << 16;
+
+    Robot robot;
+    SimulationClock clock;
+    File path;
+    // ring of samples, written by the parser thread and read on pulses
+    double[] ring;
+    AtomicLong written, read;
+    volatile boolean isParsed, isStopped;
+    volatile IOException parseError;
+    Thread parser;
+    AnimationTimer replay;
+    EventHandler<ActionEvent> onReplayFinished;
+    double startTime, logStartTime;
+    long droppedSamples, stalls;
+    double[] current;
+
+    /**
+     * Initializes a JointLogReplayer object.
+     * @param _robot robot to drive
+     * @param _clock simulation clock replay is timed by
+     * @param _path joint log to replay
+     */
+    public JointLogReplayer(Robot _robot, SimulationClock _clock, File _path) {
+        robot = _robot;
+        clock = _clock;
+        path = _path;
+        ring = new double[RING_CAPACITY * JointLogReader.SAMPLE_SIZE];
+        written = new AtomicLong();
+        read = new AtomicLong();
+        current = new double[JointLogReader.SAMPLE_SIZE];
+    }
+
+    /**
+     * Starts parsing and replaying the log from the current simulation time.
+     * This method must be called on the JavaFX application thread.
+     * @throws IOException if the log can't be opened
+     */
+    public void start() throws IOException {
+        final JointLogReader reader = new JointLogReader(path);
+        parser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse(reader);
+            }
+        }, "joint-log-parser");
+        parser.setDaemon(true);
+        parser.start();
+
+        startTime = clock.getTime();
+        logStartTime = Double.NaN;
+        replay = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                update();
+            }
+        };
+        replay.start();
+    }
+
+    /**
+     * Stops replaying.
+     */
+    public void stop() {
+        isStopped = true;
+        if (replay != null)
+            replay.stop();
+    }
+
+    /**
+     * Add EventHandler to call when replay ends on its own, either with the
+     * whole log replayed or with parsing failed partway through.
+     * @param handler EventHandler to call
+     * @see JointLogReplayer#getParseError()
+     */
+    public void setOnReplayFinished(EventHandler<ActionEvent> handler) {
+        onReplayFinished = handler;
+    }
+
+    /**
+     * Retrieves the number of samples skipped because more than one sample
+     * fell between two pulses.
+     * @return dropped sample count
+     */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Retrieves the number of pulses on which parsing was behind replay.
+     * @return stall count
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Retrieves the error which ended parsing, if any.
+     * @return error, null if there was none
+     */
+    public IOException getParseError() {
+        return parseError;
+    }
+
+    /**
+     * Parser thread - fills the ring, waiting whenever it's full.
+     * @param reader log reader
+     */
+    private void parse(JointLogReader reader) {
+        double[] sample = new double[JointLogReader.SAMPLE_SIZE];
+        try {
+            long next = 0;
+            while (!isStopped && reader.next(sample)) {
+                while (next - read.get() == RING_CAPACITY) {
+                    if (isStopped)
+                        return;
+                    LockSupport.parkNanos(1000000);
+                }
+                System.arraycopy(sample, 0, ring,
+                        (int) (next % RING_CAPACITY) * JointLogReader.SAMPLE_SIZE,
+                        JointLogReader.SAMPLE_SIZE);
+                written.lazySet(++next);
+            }
+        } catch (IOException e) {
+            parseError = e;
+        } finally {
+            isParsed = true;
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // the log has been read already
+            }
+        }
+    }
+
+    /**
+     * Moves the robot to the log's position at the current simulation time,
+     * called on every pulse.
+     */
+    private void update() {
+        // once parsing is known to be done, the sample count can't change
+        boolean parsed = isParsed;
+        long first = read.get(), available = written.get() - first;
+        if (available == 0) {
+            if (parsed)
+                finish();
+            else
+                stalls++;
+            return;
+        }
+        if (Double.isNaN(logStartTime))
+            logStartTime = timeOf(first);
+        double time = logStartTime + (clock.getTime() - startTime) / 1000.0;
+
+        // drop every sample followed by another one that's already due
+        while (available > 1 && timeOf(first + 1) <= time) {
+            first++;
+            available--;
+            droppedSamples++;
+        }
+        read.lazySet(first);
+        if (available == 1 && !parsed && timeOf(first) < time)
+            stalls++;
+
+        int a = (int) (first % RING_CAPACITY) * JointLogReader.SAMPLE_SIZE;
+        if (available == 1 || time <= ring[a]) {
+            for (int i = 1; i < JointLogReader.SAMPLE_SIZE; i++)
+                current[i] = ring[a + i];
+        }
+        else {
+            int b = (int) ((first + 1) % RING_CAPACITY) * JointLogReader.SAMPLE_SIZE;
+            double fraction = (time - ring[a]) / (ring[b] - ring[a]);
+            for (int i = 1; i < JointLogReader.SAMPLE_SIZE; i++)
+                current[i] = ring[a + i] + (ring[b + i] - ring[a + i]) * fraction;
+        }
+        robot.setJointState(current[1], current[2], current[3], current[4]);
+
+        // the last sample of the log has been reached
+        if (available == 1 && parsed && time >= ring[a]) {
+            read.lazySet(first + 1);
+            finish();
+        }
+    }
+
+    /**
+     * Stops replaying once there's nothing left to replay and calls the
+     * assigned handler.
+     */
+    private void finish() {
+        stop();
+        if (onReplayFinished != null)
+            onReplayFinished.handle(new ActionEvent());
+    }
+
+    /**
+     * Retrieves the timestamp of a sample in the ring.
+     * @param sample sample number
+     * @return timestamp in seconds
+     */
+    private double timeOf(long sample) {
+        return ring[(int) (sample % RING_CAPACITY) * JointLogReader.SAMPLE_SIZE];
+    }
+}
@@ -1,4 +1,6 @@
+import javafx.animation.*;
 import javafx.application.*;
+import javafx.beans.value.*;
 import javafx.event.*;
 import javafx.geometry.*;
 import javafx.scene.shape.*;
@@ -9,6 +11,8 @@ import javafx.scene.input.*;
 import javafx.scene.layout.*;
 import javafx.scene.paint.*;
 import javafx.scene.transform.*;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import static javafx.scene.input.KeyCode.*;
 
 /**
@@ -16,6 +20,7 @@ import static javafx.scene.input.KeyCode.*;
  */
 public class Main extends Application {
     // 3D objects
+    SimulationClock clock;
     Recorder recorder;
     Robot robot;
     Box box, floor;
@@ -27,7 +32,12 @@ public class Main extends Application {
     double mousePosX, mousePosY, mouseOldX, mouseOldY;
     // UI controls
     TextField innerAngleField, outerAngleField, effectorAngleField, effectorPosField;
-    Button record, play, stop, set, reset;
+    Button record, play, stop, save, load, set, reset;
+    // manual control, external control, log replay and telemetry
+    ControlLoop controlLoop;
+    ControlServer controlServer;
+    JointLogReplayer replayer;
+    TelemetryPublisher telemetry;
 
     /**
      * Initializes JavaFX application
@@ -35,64 +45,166 @@ public class Main extends Application {
      */
     @Override
     public void start(Stage primaryStage) {
+        long startTime = System.nanoTime();
         primaryStage.setTitle("SCARA Robot Simulation");
         primaryStage.setResizable(false);
-        HBox layout = new HBox(createControls(), createContent());
+        HBox layout = new HBox(createContent());
         Scene scene = new Scene(layout);
-        handleKeyboard(scene);
+        clock.start();
+        controlLoop = new ControlLoop(robot, box, floor);
+        controlLoop.start();
+        handleKeyboard(primaryStage, scene);
         handleMouse(scene);
         primaryStage.setScene(scene);
         primaryStage.show();
+        createControlsLater(primaryStage, layout, startTime);
+        startControlServer();
+        startReplay();
+        startTelemetry();
     }
 
     /**
-     * Initializes 3D content and returns a relevant Group layout.
-     * @return group with 3D content, a Group object
+     * Adds controls to the layout once the first frame with 3D content has
+     * been shown, so that they don't delay it, and reports startup time.
+     * @param stage primary stage
+     * @param layout main layout
+     * @param startTime time start was called at, from System.nanoTime
      */
-    private Group createContent() {
-        // robot
-        robot = new Robot(1.0, 0.25, 2.0, 1.5, 1.25, 0.25, 0.5, 0.125, 2.0,
-                0.675, 0.175, 120, 0.5, Color.DARKGRAY, Color.GREY);
+    private void createControlsLater(final Stage stage, final HBox layout,
+                                     final long startTime) {
+        new AnimationTimer() {
+            int pulses = 0;
 
-        // recorder
-        recorder = new Recorder();
+            @Override
+            public void handle(long now) {
+                // the first frame is rendered after the first pulse
+                if (++pulses < 2)
+                    return;
+                stop();
+                long firstFrame = System.nanoTime();
+                layout.getChildren().add(0, createControls());
+                stage.sizeToScene();
+                System.out.printf("Startup: %d ms from JVM start to first frame, " +
+                                "%d ms in start, controls built in %d ms%n",
+                        System.currentTimeMillis() -
+                                ManagementFactory.getRuntimeMXBean().getStartTime(),
+                        (firstFrame - startTime) / 1000000,
+                        (System.nanoTime() - firstFrame) / 1000000);
+            }
+        }.start();
+    }
 
-        // floor
-        floor = new Box(8.0, 0.1, 8.0);
-        floor.setMaterial(new PhongMaterial(Color.WHITE));
-        floor.setDrawMode(DrawMode.FILL);
-        floor.setTranslateY(0.1);
+    /**
+     * Stops manual control, external control, log replay and telemetry, if
+     * running.
+     */
+    @Override
+    public void stop() {
+        clock.stop();
+        controlLoop.stop();
+        if (controlServer != null)
+            controlServer.stop();
+        if (replayer != null)
+            replayer.stop();
+        if (telemetry != null) {
+            try {
+                telemetry.close();
+            } catch (Exception e) {
+                System.err.println("Telemetry failed to close: " + e.getMessage());
+            }
+        }
+    }
 
-        // interactive box
-        box = new Box(0.675, 0.675, 0.675);
-        box.setMaterial(new PhongMaterial(Color.BLUE));
-        box.setDrawMode(DrawMode.FILL);
-        box.setTranslateX(2.75);
-        box.setTranslateY(-0.25);
-        boxRotate = new Rotate(0, Rotate.Y_AXIS);
-        box.getTransforms().add(boxRotate);
+    /**
+     * Starts replaying a joint log if one was given with the --replay=FILE
+     * command line parameter. Once replay ends, any parse error, stalls and
+     * dropped samples are reported.
+     * @see JointLogReplayer
+     */
+    private void startReplay() {
+        String path = getParameters().getNamed().get("replay");
+        if (path == null)
+            return;
+        replayer = new JointLogReplayer(robot, clock, new File(path));
+        replayer.setOnReplayFinished(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                if (replayer.getParseError() != null)
+                    System.err.println("Replay stopped early: " +
+                            replayer.getParseError().getMessage());
+                System.out.println("Replay finished: " + replayer.getStalls() + " stalls, " +
+                        replayer.getDroppedSamples() + " dropped samples");
+            }
+        });
+        try {
+            replayer.start();
+        } catch (Exception e) {
+            System.err.println("Replay failed to start: " + e.getMessage());
+            replayer = null;
+        }
+    }
 
-        // camera setup
-        camera = new PerspectiveCamera(true);
-        cameraYRotate = new Rotate(-45.0, Rotate.Y_AXIS);
-        cameraXRotate = new Rotate(-30.0, Rotate.X_AXIS);
-        cameraTranslate = new Translate(0.0, 0.0, -15.0);
-        camera.getTransforms().addAll(cameraYRotate, cameraXRotate, cameraTranslate);
+    /**
+     * Starts publishing robot state on every pulse if a file was given with
+     * the --telemetry=FILE command line parameter.
+     * @see TelemetryPublisher
+     */
+    private void startTelemetry() {
+        String path = getParameters().getNamed().get("telemetry");
+        if (path == null)
+            return;
+        try {
+            telemetry = new TelemetryPublisher(new File(path), 4096);
+        } catch (Exception e) {
+            System.err.println("Telemetry failed to start: " + e.getMessage());
+            return;
+        }
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                telemetry.publish(now, robot, box, boxRotate);
+            }
+        }.start();
+    }
 
-        // lights
-        PointLight pLight = new PointLight(Color.WHITE);
-        pLight.setTranslateX(50);
-        pLight.setTranslateY(-300);
-        pLight.setTranslateZ(-400);
-        AmbientLight aLight = new AmbientLight(Color.color(0.3, 0.3, 0.3));
+    /**
+     * Starts the local control server if a port was given with the
+     * --control-port=PORT command line parameter.
+     * @see ControlServer
+     */
+    private void startControlServer() {
+        String port = getParameters().getNamed().get("control-port");
+        if (port == null)
+            return;
+        controlServer = new ControlServer(robot, recorder, box, boxRotate, floor);
+        try {
+            System.out.println("Control server listening on port " +
+                    controlServer.start(Integer.parseInt(port)));
+        } catch (Exception e) {
+            System.err.println("Control server failed to start: " + e.getMessage());
+            controlServer = null;
+        }
+    }
+
+    /**
+     * Initializes 3D content and returns a relevant Group layout.
+     * @return group with 3D content, a Group object
+     */
+    private Group createContent() {
+        Workcell workcell = new Workcell();
+        clock = workcell.getClock();
+        recorder = workcell.getRecorder();
+        robot = workcell.getRobot();
+        box = workcell.getBox();
+        boxRotate = workcell.getBoxRotate();
+        floor = workcell.getFloor();
+        camera = workcell.getCamera();
+        cameraXRotate = workcell.getCameraXRotate();
+        cameraYRotate = workcell.getCameraYRotate();
+        cameraTranslate = workcell.getCameraTranslate();
 
-        // misc other setup and return group
-        Group root = new Group();
-        root.getChildren().addAll(camera, robot, floor, box, pLight, aLight);
-        SubScene subScene = new SubScene(root, 500,500, true, SceneAntialiasing.BALANCED);
-        subScene.setCamera(camera);
         Group group = new Group();
-        group.getChildren().add(subScene);
+        group.getChildren().add(workcell.createSubScene(500, 500, SceneAntialiasing.BALANCED));
         return group;
     }
 
@@ -112,6 +224,8 @@ public class Main extends Application {
         record = new Button("Nagrywaj");
         play = new Button("Odtwarzaj");
         stop = new Button("Zatrzymaj");
+        save = new Button("Zapisz");
+        load = new Button("Wczytaj");
         Label robotSettingsText = new Label("Sterowanie robotem");
         Label innerAngleLabel = new Label("Kąt ramienia wewn. [st.]:");
         innerAngleField = new TextField("0");
@@ -131,7 +245,9 @@ public class Main extends Application {
                 "W, S - obrót ramienia wewnętrznego\n" +
                 "E, D - obrót efektora\n" +
                 "R, F - przesunięcie efektora\n" +
-                "G - złapanie/puszczenie klocka");
+                "G - złapanie/puszczenie klocka\n" +
+                "P - pauza symulacji, N - krok\n" +
+                "+, - - prędkość symulacji");
 
         // handle control events
         handleControls();
@@ -141,18 +257,20 @@ public class Main extends Application {
         controls.add(record, 0, 1, 1, 1);
         controls.add(play, 1, 1, 1, 1);
         controls.add(stop, 2, 1, 1, 1);
-        controls.add(robotSettingsText, 0, 2, 3, 1);
-        controls.add(innerAngleLabel, 0, 3, 2, 1);
-        controls.add(innerAngleField, 2, 3, 1, 1);
-        controls.add(outerAngleLabel, 0, 4, 2, 1);
-        controls.add(outerAngleField, 2, 4, 1, 1);
-        controls.add(effectorAngleLabel, 0, 5, 2, 1);
-        controls.add(effectorAngleField, 2, 5, 1, 1);
-        controls.add(effectorPosLabel, 0, 6, 2, 1);
-        controls.add(effectorPosField, 2, 6, 1, 1);
-        controls.add(reset, 1, 7, 1, 1);
-        controls.add(set, 2, 7, 1, 1);
-        controls.add(controlLabel, 0, 8, 3, 1);
+        controls.add(save, 1, 2, 1, 1);
+        controls.add(load, 2, 2, 1, 1);
+        controls.add(robotSettingsText, 0, 3, 3, 1);
+        controls.add(innerAngleLabel, 0, 4, 2, 1);
+        controls.add(innerAngleField, 2, 4, 1, 1);
+        controls.add(outerAngleLabel, 0, 5, 2, 1);
+        controls.add(outerAngleField, 2, 5, 1, 1);
+        controls.add(effectorAngleLabel, 0, 6, 2, 1);
+        controls.add(effectorAngleField, 2, 6, 1, 1);
+        controls.add(effectorPosLabel, 0, 7, 2, 1);
+        controls.add(effectorPosField, 2, 7, 1, 1);
+        controls.add(reset, 1, 8, 1, 1);
+        controls.add(set, 2, 8, 1, 1);
+        controls.add(controlLabel, 0, 9, 3, 1);
 
         // alignment corrections
         GridPane.setHalignment(robotSettingsText, HPos.CENTER);
@@ -206,6 +324,36 @@ public class Main extends Application {
                 set.setDisable(false);
             }
         });
+        save.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                if (recorder.isRecording() || recorder.isPlaying())
+                    return;
+                File file = new FileChooser().showSaveDialog(save.getScene().getWindow());
+                if (file == null)
+                    return;
+                try {
+                    recorder.saveProgram(file, robot);
+                } catch (Exception e) {
+                    System.err.println("Program failed to save: " + e.getMessage());
+                }
+            }
+        });
+        load.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                if (recorder.isRecording() || recorder.isPlaying())
+                    return;
+                File file = new FileChooser().showOpenDialog(load.getScene().getWindow());
+                if (file == null)
+                    return;
+                try {
+                    recorder.loadProgram(file, robot);
+                } catch (Exception e) {
+                    System.err.println("Program failed to load: " + e.getMessage());
+                }
+            }
+        });
         reset.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
@@ -236,6 +384,8 @@ public class Main extends Application {
                     innerAngleField.setText("Błąd!"); outerAngleField.clear();
                     effectorAngleField.clear(); effectorPosField.clear();
                 }
+                // the set position is played, not recorded into
+                recorder.stopAll();
                 recorder.doPlay(robot, box, boxRotate, floor);
                 play.setDisable(true);
                 record.setDisable(true);
@@ -291,13 +441,33 @@ public class Main extends Application {
     }
 
     /**
-     * Handles keyboard input for robotic arm control.
+     * Handles keyboard input for robotic arm control. Arm moves themselves
+     * are done by the control loop for as long as a key is held, or until
+     * the window loses focus, since keys released elsewhere aren't reported.
+     * @param stage primary stage
      * @param scene active scene
+     * @see ControlLoop
      */
-    private void handleKeyboard(Scene scene) {
+    private void handleKeyboard(Stage stage, Scene scene) {
+        stage.focusedProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable,
+                                Boolean oldValue, Boolean newValue) {
+                // record where the jogged joints stopped, as a key release would
+                if (!newValue && controlLoop.releaseAll() && recorder.isRecording()) {
+                    recorder.addPos(robot.outerAngleProperty());
+                    recorder.addPos(robot.innerAngleProperty());
+                    recorder.addPos(robot.effectorAngleProperty());
+                    recorder.addPos(robot.effectorPosProperty());
+                }
+            }
+        });
+
+
         scene.setOnKeyReleased(new EventHandler<KeyEvent>() {
             @Override
             public void handle(KeyEvent event) {
+                controlLoop.release(event.getCode());
                 if (event.getCode() == G)
                     robot.attemptGrabLaydown(box, boxRotate, floor, null);
 
@@ -319,50 +489,30 @@ public class Main extends Application {
         scene.setOnKeyPressed(new EventHandler<KeyEvent>() {
             @Override
             public void handle(KeyEvent event) {
-                performMoveFromKeyboard(event, 1.0);
-                // undo move if new position not legal
-                if (!robot.isPositionLegal(box, floor))
-                    performMoveFromKeyboard(event, -1.0);
+                if (controlLoop.press(event.getCode()))
+                    return;
+                // keys typed into text fields, e.g. "-30", aren't shortcuts
+                if (event.getTarget() instanceof TextInputControl)
+                    return;
+                switch (event.getCode()) {
+                    case P:
+                        clock.setPaused(!clock.isPaused());
+                        break;
+                    case N:
+                        if (clock.isPaused())
+                            clock.step();
+                        break;
+                    case ADD: case PLUS: case EQUALS:
+                        clock.setScale(clock.getScale() * 2.0);
+                        break;
+                    case SUBTRACT: case MINUS:
+                        clock.setScale(clock.getScale() / 2.0);
+                        break;
+                }
             }
         });
     }
 
-    /**
-     * Handles keyboard-initiated robot moves. Multiplier can be specified for
-     * speed changes and action reversal.
-     * @param event keyboard event
-     * @param mult specified rotation/move multiplier
-     * @see Main#handleKeyboard(Scene)
-     */
-    private void performMoveFromKeyboard(KeyEvent event, double mult) {
-        switch (event.getCode()) {
-            case Q:
-                robot.rotateOuter(mult * 1);
-                break;
-            case A:
-                robot.rotateOuter(mult * -1);
-                break;
-            case W:
-                robot.rotateInner(mult * 1);
-                break;
-            case S:
-                robot.rotateInner(mult * -1);
-                break;
-            case E:
-                robot.rotateEffector(mult * 1);
-                break;
-            case D:
-                robot.rotateEffector(mult * -1);
-                break;
-            case R:
-                robot.moveEffector(mult * 0.01);
-                break;
-            case F:
-                robot.moveEffector(mult * -0.01);
-                break;
-        }
-    }
-
     /**
      * The main() method is ignored in correctly deployed JavaFX
      * application. main() serves only as fallback in case the
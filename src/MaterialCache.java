@@ -0,0 +1,27 @@
+import javafx.scene.paint.Color;
+import javafx.scene.paint.PhongMaterial;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class shares materials between all 3D objects of the same color, so
+ * that each one is only created and uploaded once. Meshes of boxes and
+ * cylinders are already shared by JavaFX itself.
+ */
+public class MaterialCache {
+    static final Map<Color, PhongMaterial> materials = new HashMap<>();
+
+    /**
+     * Retrieves the shared material of a given color.
+     * @param color diffuse color
+     * @return material
+     */
+    public static synchronized PhongMaterial get(Color color) {
+        PhongMaterial material = materials.get(color);
+        if (material == null) {
+            material = new PhongMaterial(color);
+            materials.put(color, material);
+        }
+        return material;
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class describes a single pick and place job - where a part lies on
+ * the floor and where it should be laid down. Positions are given in scene
+ * coordinates, angles are with respect to scene X-axis.
+ * @see JobSequencer
+ */
+public class PickPlaceJob {
+    double pickX, pickZ, pickAngle, placeX, placeZ, placeAngle;
+
+    /**
+     * Initializes a PickPlaceJob object.
+     * @param _pickX part X coordinate
+     * @param _pickZ part Z coordinate
+     * @param _pickAngle part rotation angle
+     * @param _placeX destination X coordinate
+     * @param _placeZ destination Z coordinate
+     * @param _placeAngle destination rotation angle
+     */
+    public PickPlaceJob(double _pickX, double _pickZ, double _pickAngle,
+                        double _placeX, double _placeZ, double _placeAngle) {
+        pickX = _pickX;
+        pickZ = _pickZ;
+        pickAngle = _pickAngle;
+        placeX = _placeX;
+        placeZ = _placeZ;
+        placeAngle = _placeAngle;
+    }
+
+    /**
+     * Retrieves part X coordinate.
+     * @return X coordinate
+     */
+    public double getPickX() {
+        return pickX;
+    }
+
+    /**
+     * Retrieves part Z coordinate.
+     * @return Z coordinate
+     */
+    public double getPickZ() {
+        return pickZ;
+    }
+
+    /**
+     * Retrieves part rotation angle.
+     * @return angle in degrees
+     */
+    public double getPickAngle() {
+        return pickAngle;
+    }
+
+    /**
+     * Retrieves destination X coordinate.
+     * @return X coordinate
+     */
+    public double getPlaceX() {
+        return placeX;
+    }
+
+    /**
+     * Retrieves destination Z coordinate.
+     * @return Z coordinate
+     */
+    public double getPlaceZ() {
+        return placeZ;
+    }
+
+    /**
+     * Retrieves destination rotation angle.
+     * @return angle in degrees
+     */
+    public double getPlaceAngle() {
+        return placeAngle;
+    }
+
+    /**
+     * Loads a list of jobs from a text file. Each line holds a single job -
+     * part X, Z and angle followed by destination X, Z and angle, separated
+     * by whitespace. Blank lines and lines starting with # are skipped.
+     * @param file file to load from
+     * @return loaded jobs
+     * @throws IOException if reading fails or the file is malformed
+     */
+    public static List<PickPlaceJob> loadJobs(File file) throws IOException {
+        List<PickPlaceJob> jobs = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] values = line.split("\\s+");
+                if (values.length != 6)
+                    throw new IOException("Expected 6 values in job: " + line);
+                try {
+                    jobs.add(new PickPlaceJob(Double.parseDouble(values[0]),
+                            Double.parseDouble(values[1]), Double.parseDouble(values[2]),
+                            Double.parseDouble(values[3]), Double.parseDouble(values[4]),
+                            Double.parseDouble(values[5])));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed job: " + line, e);
+                }
+            }
+        }
+        return jobs;
+    }
+}
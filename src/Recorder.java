@@ -1,10 +1,10 @@
 import javafx.animation.*;
 import javafx.event.*;
+import java.io.*;
 import java.util.*;
 import javafx.beans.property.DoubleProperty;
 import javafx.scene.shape.Box;
 import javafx.scene.transform.Rotate;
-import javafx.util.Duration;
 
 /**
  * This class implements robot movement recording and playback functionality.
@@ -12,14 +12,22 @@ import javafx.util.Duration;
  */
 public class Recorder {
     Queue<DoublePropertyTarget> positions;
-    EventHandler<ActionEvent> onPlayFinished;
+    // position in a snapshot of the program being played, null if not
+    // playing; steps recorded meanwhile only take effect on the next play
+    Iterator<DoublePropertyTarget> playback;
+    DoublePropertyTarget currentStep;
+    SimulationClock clock;
+    EventHandler<ActionEvent> onPlayFinished, onStep;
+    long playedSteps;
     boolean isRecording, isPlaying, initialBoxVisible, initialBoxGrabbed;
     double initialBoxTranslateX, initialBoxTranslateZ, initialBoxRotateAngle;
 
     /**
      * Initializes recorder object.
+     * @param _clock simulation clock playback is timed by
      */
-    public Recorder() {
+    public Recorder(SimulationClock _clock) {
+        clock = _clock;
         positions = new LinkedList<>();
         isRecording = false;
         isPlaying = false;
@@ -58,10 +66,21 @@ public class Recorder {
         return isRecording;
     }
 
+    /**
+     * Checks whether or not recorder is playing.
+     * @return true if it is, false otherwise
+     */
+    public boolean isPlaying() {
+        return isPlaying;
+    }
+
     /**
      * Plays next recorded step. This method is intended to be called manually
      * once. In each call an animation is going to be set up and run in so that
-     * this method will be run again until some action is present in the queue.
+     * this method will be run again until all recorded steps are played.
+     * Playback leaves the recorded program intact, so it can be played again
+     * or saved afterwards. Steps are played from a copy taken at the initial
+     * call, steps added meanwhile don't affect playback in progress.
      * @param robot recorder robot
      * @param box interactive box
      * @param boxRotate interactive box's rotate transform
@@ -79,46 +98,76 @@ public class Recorder {
                 robot.grab(box, boxRotate, floor, this);
             boxRotate.setAngle(initialBoxRotateAngle);
             isPlaying = true;
+            playedSteps = 0;
+            playback = new ArrayList<>(positions).iterator();
         }
 
         // last call - update status variables and call the assigned handler
-        if (positions.isEmpty()) {
+        if (!playback.hasNext()) {
             isPlaying = false;
+            currentStep = null;
+            playback = null;
             if (onPlayFinished != null)
                 onPlayFinished.handle(new ActionEvent());
             return;
         }
 
+        DoublePropertyTarget step = playback.next();
+        currentStep = step;
+        playedSteps++;
+        if (onStep != null)
+            onStep.handle(new ActionEvent());
+
         // null assigned DoubleProperty signifies grab/lay down attempt,
         // animation handed off to the robot
-        if (positions.peek().getProperty() == null) {
-            positions.poll();
+        if (step.getProperty() == null) {
             robot.attemptGrabLaydown(box, boxRotate, floor, this);
             return;
         }
 
         // set constant speed, different for rotation and translation
-        double animationDur = Math.abs(positions.peek().getProperty().getValue() -
-                positions.peek().getTarget());
-        if (positions.peek().getProperty().getBean() instanceof Rotate)
-            animationDur *= 25.0;
-        else animationDur *= 2500.0;
-
-        // setup and run playback step
-        final Timeline animation = new Timeline();
-        animation.setCycleCount(1);
-        animation.setAutoReverse(false);
-        animation.getKeyFrames().add(new KeyFrame(Duration.millis(
-                animationDur), new KeyValue(positions.peek().getProperty(),
-                        positions.poll().getTarget())));
-        // run this function again for the next step when this animation is finished
-        animation.setOnFinished(new EventHandler<ActionEvent>() {
-            @Override
-            public void handle(ActionEvent event) {
-                doPlay(robot, box, boxRotate, floor);
-            }
-        });
-        animation.play();
+        double animationDur = getStepDuration(
+                step.getProperty().getBean() instanceof Rotate,
+                step.getProperty().getValue() - step.getTarget());
+
+        // setup and run playback step, run this function again for the next
+        // step when it's finished
+        clock.animate(step.getProperty(), step.getTarget(),
+                animationDur, Interpolator.LINEAR, new EventHandler<ActionEvent>() {
+                    @Override
+                    public void handle(ActionEvent event) {
+                        doPlay(robot, box, boxRotate, floor);
+                    }
+                });
+    }
+
+    /**
+     * Retrieves the number of steps started since playback was started,
+     * including the one being played.
+     * @return played step count
+     */
+    public long getPlayedSteps() {
+        return playedSteps;
+    }
+
+    /**
+     * Retrieves the step being played.
+     * @return step, with null property for a grab/lay down attempt, or null
+     *         if not playing
+     */
+    public DoublePropertyTarget getCurrentStep() {
+        return currentStep;
+    }
+
+    /**
+     * Computes playback duration of a single move. Rotations and translations
+     * are played back at different constant speeds.
+     * @param isRotation true if the move is a rotation, false if translation
+     * @param distance angle or distance (+/-) to move by
+     * @return duration in milliseconds
+     */
+    public static double getStepDuration(boolean isRotation, double distance) {
+        return Math.abs(distance) * (isRotation ? 25.0 : 2500.0);
     }
 
     /**
@@ -129,6 +178,8 @@ public class Recorder {
     public void stopAll() {
         isRecording = false;
         isPlaying = false;
+        currentStep = null;
+        playback = null;
     }
 
     /**
@@ -160,6 +211,85 @@ public class Recorder {
         positions.add(new DoublePropertyTarget(property, target));
     }
 
+    /**
+     * Saves the recorded program to a text file. The first line holds the
+     * initial box position (X, Z, rotation angle and visibility), each
+     * following line holds a single step - a joint name and its target
+     * value, or "grab" for a grab/lay down attempt.
+     * @param file file to save to
+     * @param robot recorded robot
+     * @throws IOException if writing fails
+     * @see Recorder#loadProgram(File, Robot)
+     */
+    public void saveProgram(File file, Robot robot) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("box " + initialBoxTranslateX + " " + initialBoxTranslateZ +
+                    " " + initialBoxRotateAngle + " " + initialBoxVisible);
+            for (DoublePropertyTarget position : positions) {
+                DoubleProperty property = position.getProperty();
+                if (property == null)
+                    out.println("grab");
+                else if (property == robot.innerAngleProperty())
+                    out.println("inner " + position.getTarget());
+                else if (property == robot.outerAngleProperty())
+                    out.println("outer " + position.getTarget());
+                else if (property == robot.effectorAngleProperty())
+                    out.println("effectorAngle " + position.getTarget());
+                else if (property == robot.effectorPosProperty())
+                    out.println("effectorPos " + position.getTarget());
+            }
+            if (out.checkError())
+                throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /**
+     * Loads a program saved with saveProgram, replacing the recorded one.
+     * @param file file to load from
+     * @param robot robot to play the program with
+     * @throws IOException if reading fails or the file is malformed
+     * @see Recorder#saveProgram(File, Robot)
+     */
+    public void loadProgram(File file, Robot robot) throws IOException {
+        abortAll();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String header = in.readLine();
+            String[] box = (header == null) ? new String[0] : header.split(" ");
+            if (box.length != 5 || !box[0].equals("box"))
+                throw new IOException("Missing initial box position");
+            initialBoxTranslateX = Double.parseDouble(box[1]);
+            initialBoxTranslateZ = Double.parseDouble(box[2]);
+            initialBoxRotateAngle = Double.parseDouble(box[3]);
+            initialBoxVisible = Boolean.parseBoolean(box[4]);
+            initialBoxGrabbed = !initialBoxVisible;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] step = line.split(" ");
+                if (step[0].equals("grab"))
+                    addPos(null);
+                else if (step.length != 2)
+                    throw new IOException("Malformed step: " + line);
+                else if (step[0].equals("inner"))
+                    addPos(robot.innerAngleProperty(), Double.parseDouble(step[1]));
+                else if (step[0].equals("outer"))
+                    addPos(robot.outerAngleProperty(), Double.parseDouble(step[1]));
+                else if (step[0].equals("effectorAngle"))
+                    addPos(robot.effectorAngleProperty(), Double.parseDouble(step[1]));
+                else if (step[0].equals("effectorPos"))
+                    addPos(robot.effectorPosProperty(), Double.parseDouble(step[1]));
+                else
+                    throw new IOException("Unknown step: " + line);
+            }
+        } catch (NumberFormatException e) {
+            positions.clear();
+            throw new IOException("Malformed program file " + file, e);
+        } catch (IOException e) {
+            positions.clear();
+            throw e;
+        }
+    }
+
     /**
      * Add EventHandler to call when playback is finished.
      * @param _onPlayFinished EventHandler to call
@@ -169,4 +299,12 @@ public class Recorder {
         if (!isPlaying && onPlayFinished != null)
             onPlayFinished.handle(new ActionEvent());
     }
+
+    /**
+     * Add EventHandler to call whenever playback of a step is about to start.
+     * @param _onStep EventHandler to call, null to remove
+     */
+    public void setOnStep(EventHandler<ActionEvent> _onStep) {
+        onStep = _onStep;
+    }
 }
@@ -4,9 +4,11 @@ import javafx.scene.*;
 import javafx.scene.paint.*;
 import javafx.scene.shape.*;
 import javafx.scene.transform.*;
-import javafx.util.Duration;
+import javafx.geometry.Bounds;
 import javafx.geometry.Point3D;
 import javafx.beans.property.DoubleProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import static javafx.scene.shape.DrawMode.FILL;
 
 /**
@@ -14,10 +16,20 @@ import static javafx.scene.shape.DrawMode.FILL;
  * methods for manipulations.
  */
 public class Robot extends Group {
+    public static final int LINK_INNER = 0, LINK_OUTER = 1, LINK_EFFECTOR = 2;
+
     Rotate rotateInnerTr, rotateOuterTr, rotateEffectorTr;
-    Group rotateEffectorGroup;
+    Group rotateInnerGroup, rotateOuterGroup, rotateEffectorGroup;
     Box grabber, grabbedBox;
-    double maxOuterAngle, maxEffectorMove;
+    double maxOuterAngle, maxEffectorMove, armInnerLength, armOuterLength;
+    SimulationClock clock;
+    // cached world-space poses, recomputed only after a joint has changed
+    // or the robot has been moved
+    boolean posesDirty;
+    Transform[] linkPoses;
+    Bounds grabberBounds, grabbedBoxBounds;
+    Point3D grabberPos, grabberSurfacePos;
+    double grabberAngle;
 
     /**
      * Constructs a Robot object with a given set of dimensions.
@@ -41,11 +53,11 @@ public class Robot extends Group {
                  double _maxOuterAngle, double _maxEffectorMove,
                  Color primaryCol, Color secondaryCol) {
         super();
-        Group rotateInnerGroup = new Group();
-        Group rotateOuterGroup = new Group();
+        rotateInnerGroup = new Group();
+        rotateOuterGroup = new Group();
         rotateEffectorGroup = new Group();
-        PhongMaterial primary = new PhongMaterial(primaryCol),
-                secondary = new PhongMaterial(secondaryCol);
+        PhongMaterial primary = MaterialCache.get(primaryCol),
+                secondary = MaterialCache.get(secondaryCol);
 
         Box base = new Box(baseSide, baseHeight, baseSide);
         base.setMaterial(secondary); base.setDrawMode(FILL);
@@ -85,7 +97,41 @@ public class Robot extends Group {
 
         maxOuterAngle = _maxOuterAngle;
         maxEffectorMove = _maxEffectorMove;
+        this.armInnerLength = armInnerLength;
+        this.armOuterLength = armOuterLength;
         grabbedBox = null;
+
+        // any joint change invalidates cached poses
+        ChangeListener<Number> jointListener = new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> observable,
+                                Number oldValue, Number newValue) {
+                posesDirty = true;
+            }
+        };
+        rotateInnerTr.angleProperty().addListener(jointListener);
+        rotateOuterTr.angleProperty().addListener(jointListener);
+        rotateEffectorTr.angleProperty().addListener(jointListener);
+        rotateEffectorGroup.translateYProperty().addListener(jointListener);
+        // so does moving the robot or any of its parents
+        localToSceneTransformProperty().addListener(new ChangeListener<Transform>() {
+            @Override
+            public void changed(ObservableValue<? extends Transform> observable,
+                                Transform oldValue, Transform newValue) {
+                posesDirty = true;
+            }
+        });
+        linkPoses = new Transform[3];
+        posesDirty = true;
+    }
+
+    /**
+     * Sets the simulation clock box falls are timed by. It must be set before
+     * any box is laid down.
+     * @param _clock simulation clock
+     */
+    public void setClock(SimulationClock _clock) {
+        clock = _clock;
     }
 
     /**
@@ -120,6 +166,35 @@ public class Robot extends Group {
         rotateEffectorGroup.setTranslateY(rotateEffectorGroup.getTranslateY() + dist);
     }
 
+    /**
+     * Sets all four joint values at once. This is a convenience over setting
+     * each joint property in turn and behaves exactly the same - every joint
+     * that changes invalidates its own transform.
+     * @param innerAngle inner arm angle
+     * @param outerAngle outer arm angle
+     * @param effectorAngle effector angle
+     * @param effectorPos effector position
+     */
+    public void setJointState(double innerAngle, double outerAngle,
+                              double effectorAngle, double effectorPos) {
+        rotateInnerTr.setAngle(innerAngle);
+        rotateOuterTr.setAngle(outerAngle);
+        rotateEffectorTr.setAngle(effectorAngle);
+        rotateEffectorGroup.setTranslateY(effectorPos);
+    }
+
+    /**
+     * Retrieves all four joint values, in the order accepted by
+     * setJointState.
+     * @return array of inner angle, outer angle, effector angle and
+     *         effector position
+     * @see Robot#setJointState(double, double, double, double)
+     */
+    public double[] getJointState() {
+        return new double[] {rotateInnerTr.getAngle(), rotateOuterTr.getAngle(),
+                rotateEffectorTr.getAngle(), rotateEffectorGroup.getTranslateY()};
+    }
+
     /**
      * Retrieves inner angle rotation property
      * @return property
@@ -160,9 +235,10 @@ public class Robot extends Group {
      * @return true if it is, false otherwise
      */
     public boolean isPositionLegal(Box box, Box floor) {
-        return  ((grabbedBox ==  null && !grabber.localToScene(grabber.getBoundsInLocal())
+        updatePoses();
+        return  ((grabbedBox ==  null && !grabberBounds
                         .intersects(box.localToScene(box.getBoundsInLocal()))) ||
-                (grabbedBox != null && !grabbedBox.localToScene(grabbedBox.getBoundsInLocal())
+                (grabbedBox != null && !grabbedBoxBounds
                         .intersects(floor.localToScene(floor.getBoundsInLocal())))) &&
                 Math.abs(rotateOuterTr.getAngle()) < maxOuterAngle &&
                 Math.abs(rotateEffectorGroup.getTranslateY()) < maxEffectorMove;
@@ -182,6 +258,93 @@ public class Robot extends Group {
         return Math.abs(outerAngle) < maxOuterAngle && Math.abs(effectorPos) < maxEffectorMove;
     }
 
+    /**
+     * Checks whether or not a batch of robot positions is legal with respect
+     * to saved bounds. Gives the same results as checking each position with
+     * isPositionLegal(double, double, double, double), but works over plain
+     * arrays without a data-dependent branch per position, so long batches
+     * don't pay for mispredicted comparisons.
+     * @param innerAngles inner arm angles
+     * @param outerAngles outer arm angles
+     * @param effectorAngles effector angles
+     * @param effectorPositions effector positions
+     * @param count number of positions to check
+     * @return bitmask of legal positions - bit (i % 64) of word (i / 64) is
+     *         set if position i is legal
+     * @see Robot#isPositionLegal(double, double, double, double)
+     */
+    public long[] arePositionsLegal(double[] innerAngles, double[] outerAngles,
+                                    double[] effectorAngles, double[] effectorPositions,
+                                    int count) {
+        long[] legal = new long[(count + 63) / 64];
+        for (int word = 0; word < legal.length; word++) {
+            int start = word * 64, end = Math.min(start + 64, count);
+            long bits = 0;
+            for (int i = start; i < end; i++) {
+                // a - b is negative exactly when a < b, so the sign bits of
+                // both differences stand for the two comparisons
+                long outerSign = Double.doubleToRawLongBits(Math.abs(outerAngles[i]) - maxOuterAngle),
+                        posSign = Double.doubleToRawLongBits(Math.abs(effectorPositions[i]) - maxEffectorMove);
+                bits |= ((outerSign & posSign) >>> 63) << (i - start);
+            }
+            legal[word] = bits;
+        }
+        return legal;
+    }
+
+    /**
+     * Solves inverse kinematics for a grabber position and rotation in the
+     * scene's XZ plane. There are generally two solutions, differing in the
+     * sign of the outer arm angle (elbow configuration).
+     * @param x target scene X coordinate
+     * @param z target scene Z coordinate
+     * @param angle target grabber angle with respect to scene X-axis
+     * @param positiveElbow true for the solution with a positive outer angle,
+     *                      false for the negative one
+     * @return array of inner angle, outer angle and effector angle, or null
+     *         if the position can't be reached within saved bounds
+     */
+    public double[] solvePosition(double x, double z, double angle,
+                                  boolean positiveElbow) {
+        // rotations around the Y axis map +X onto -Z, hence the flipped sign
+        double dist2 = x*x + z*z;
+        double cosOuter = (dist2 - armInnerLength*armInnerLength -
+                armOuterLength*armOuterLength) / (2.0 * armInnerLength * armOuterLength);
+        if (cosOuter < -1.0 || cosOuter > 1.0)
+            return null;
+        double outer = Math.acos(cosOuter) * (positiveElbow ? 1.0 : -1.0);
+        double inner = Math.atan2(-z, x) - Math.atan2(armOuterLength * Math.sin(outer),
+                armInnerLength + armOuterLength * Math.cos(outer));
+        double innerDeg = Math.toDegrees(inner), outerDeg = Math.toDegrees(outer);
+        if (Math.abs(outerDeg) >= maxOuterAngle)
+            return null;
+        // the box is square, so pick the smallest effector rotation that
+        // keeps it aligned; fall back to an exact match otherwise
+        double effectorDeg = angle - innerDeg - outerDeg;
+        double reduced = effectorDeg - 90.0 * Math.rint(effectorDeg / 90.0);
+        if (isAngleAligned(angle, reduced + innerDeg + outerDeg))
+            effectorDeg = reduced;
+        return new double[] {innerDeg, outerDeg, effectorDeg};
+    }
+
+    /**
+     * Computes the effector position at which the bottom of the grabber is
+     * at a given scene height.
+     * @param y scene Y coordinate of the surface to reach
+     * @return effector position
+     */
+    public double getEffectorPosAt(double y) {
+        return y - grabber.getTranslateY() - grabber.getHeight() / 2.0;
+    }
+
+    /**
+     * Retrieves the duration of a laid down box's fall to the ground.
+     * @return duration in milliseconds
+     */
+    public double getFallDuration() {
+        return 750.0 * Math.sqrt(rotateEffectorGroup.getTranslateX() + maxEffectorMove);
+    }
+
     /**
      * Checks whether or not some interactive box is attached to the robot.
      * @return true if it is, false otherwise
@@ -211,7 +374,7 @@ public class Robot extends Group {
         // attempt to lay down the box
         else if (grabbedBox != null) {
             // retrieve and move box to current grabber coordinates
-            Point3D grabberPos = grabber.localToScene(0, 0, 0);
+            updatePoses();
             box.setTranslateX(grabberPos.getX());
             box.setTranslateY(grabberPos.getY() + grabber.getHeight()/2.0 + box.getHeight()/2.0);
             box.setTranslateZ(grabberPos.getZ());
@@ -222,6 +385,7 @@ public class Robot extends Group {
             box.setVisible(true);
             rotateEffectorGroup.getChildren().remove(grabbedBox);
             grabbedBox = null;
+            posesDirty = true;
         }
         // call doPlay if attempt unsuccessful so that recorder playback doesn't hang up
         else if (recorder != null)
@@ -249,6 +413,7 @@ public class Robot extends Group {
         grabbedBox.setTranslateY(grabber.getTranslateY() +
                 (grabbedBox.getHeight() + grabber.getHeight()) / 2.0);
         rotateEffectorGroup.getChildren().add(grabbedBox);
+        posesDirty = true;
     }
 
     /**
@@ -261,10 +426,6 @@ public class Robot extends Group {
      */
     private void animateFall(Box box, Rotate boxRotate,
                              Box floor, Recorder recorder) {
-        final Timeline fallAnimation = new Timeline();
-        fallAnimation.setCycleCount(1);
-        fallAnimation.setAutoReverse(false);
-
         // constant acceleration fall - quadratic relationship between time and
         // y-axis position...
         Interpolator gravity = new Interpolator() {
@@ -273,24 +434,22 @@ public class Robot extends Group {
                 return t*t;
             }
         };
-        //...and square root relationship between fall time and height
-        fallAnimation.getKeyFrames().add(new KeyFrame(Duration.millis(
-                750.0 * Math.sqrt(rotateEffectorGroup.getTranslateX() + maxEffectorMove)),
-                new KeyValue(box.translateYProperty(),
-                        - floor.getHeight() - box.getHeight() / 4.0, gravity)));
 
         // recorder playback - make it so that next action animated when fall
         // animation ends
         Robot thisRobot = this;
+        EventHandler<ActionEvent> onFinished = null;
         if (recorder != null)
-            fallAnimation.setOnFinished(new EventHandler<ActionEvent>() {
+            onFinished = new EventHandler<ActionEvent>() {
                 @Override
                 public void handle(ActionEvent event) {
                     recorder.doPlay(thisRobot, box, boxRotate, floor);
                 }
-            });
+            };
 
-        fallAnimation.play();
+        //...and square root relationship between fall time and height
+        clock.animate(box.translateYProperty(), - floor.getHeight() - box.getHeight() / 4.0,
+                getFallDuration(), gravity, onFinished);
     }
 
     /**
@@ -302,9 +461,32 @@ public class Robot extends Group {
     private boolean canGrab(Box box, Rotate boxRotate) {
         // check distance between grabber's and box's nearest surfeces' center
         // points and relative rotation angle
+        updatePoses();
         return box.localToScene(0.0, -box.getHeight() / 2.0, 0.0).distance(
-                grabber.localToScene(0.0, grabber.getHeight() / 2.0, 0.0)) < 0.3 &&
-                Math.abs(boxRotate.getAngle() - getGrabberAngle()) % 90.0 < 20.0;
+                grabberSurfacePos) < 0.3 &&
+                isAngleAligned(boxRotate.getAngle(), getGrabberAngle());
+    }
+
+    /**
+     * Checks whether or not the grabber is rotated closely enough to the box
+     * for the grab to succeed.
+     * @param boxAngle box angle with respect to scene X-axis
+     * @param grabberAngle grabber angle with respect to scene X-axis
+     * @return true if it is, false otherwise
+     */
+    private static boolean isAngleAligned(double boxAngle, double grabberAngle) {
+        // measured to the nearest multiple of 90 degrees, on either side
+        return Math.abs(Math.IEEEremainder(boxAngle - grabberAngle, 90.0)) < 20.0;
+    }
+
+    /**
+     * Retrieves world-space pose of a single link, with its joint applied.
+     * @param link LINK_INNER, LINK_OUTER or LINK_EFFECTOR
+     * @return local to scene transform of the link
+     */
+    public Transform getLinkPose(int link) {
+        updatePoses();
+        return linkPoses[link];
     }
 
     /**
@@ -312,6 +494,29 @@ public class Robot extends Group {
      * @return angle in degrees
      */
     private double getGrabberAngle() {
-        return rotateEffectorTr.getAngle() + rotateInnerTr.getAngle() + rotateOuterTr.getAngle();
+        updatePoses();
+        return grabberAngle;
+    }
+
+    /**
+     * Recomputes cached world-space poses of the links, the grabber and the
+     * grabbed box if any joint has changed or the robot has been moved since
+     * the last call. Repeated queries in between don't touch the scene graph
+     * at all.
+     */
+    private void updatePoses() {
+        if (!posesDirty)
+            return;
+        linkPoses[LINK_INNER] = rotateInnerGroup.getLocalToSceneTransform();
+        linkPoses[LINK_OUTER] = rotateOuterGroup.getLocalToSceneTransform();
+        linkPoses[LINK_EFFECTOR] = rotateEffectorGroup.getLocalToSceneTransform();
+        grabberBounds = grabber.localToScene(grabber.getBoundsInLocal());
+        grabberPos = grabber.localToScene(0.0, 0.0, 0.0);
+        grabberSurfacePos = grabber.localToScene(0.0, grabber.getHeight() / 2.0, 0.0);
+        grabbedBoxBounds = (grabbedBox == null) ? null :
+                grabbedBox.localToScene(grabbedBox.getBoundsInLocal());
+        grabberAngle = rotateEffectorTr.getAngle() + rotateInnerTr.getAngle() +
+                rotateOuterTr.getAngle();
+        posesDirty = false;
     }
 }
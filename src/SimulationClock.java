@@ -0,0 +1,224 @@
+import javafx.animation.AnimationTimer;
+import javafx.animation.Interpolator;
+import javafx.beans.property.DoubleProperty;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements the simulation clock all robot motion is timed by.
+ * Simulation time is counted in whole ticks of TICK milliseconds and every
+ * motion starts and ends on a tick, so replaying the same program always
+ * gives exactly the same results, no matter how fast it's played or how
+ * frames are rendered. When started, the clock follows wall-clock time
+ * scaled by a speed factor; it can also be paused and stepped manually, or
+ * advanced directly when running without a display.
+ */
+public class SimulationClock {
+    public static final double TICK = 1.0;
+    public static final double MIN_SCALE = 0.1, MAX_SCALE = 100.0;
+    // ticks advanced by a single manual step - one 60 Hz frame
+    static final long STEP_TICKS = 16;
+    // longest wall-clock gap followed at once, e.g. after the window was dragged
+    static final double MAX_PULSE_GAP = 100.0;
+
+    long ticks;
+    double scale, pendingTime;
+    boolean isPaused;
+    long lastPulse;
+    List<Motion> motions;
+    AnimationTimer timer;
+
+    /**
+     * Initializes a SimulationClock object at time zero.
+     */
+    public SimulationClock() {
+        ticks = 0;
+        scale = 1.0;
+        isPaused = false;
+        motions = new ArrayList<>();
+    }
+
+    /**
+     * Starts following wall-clock time on every pulse. This method must be
+     * called on the JavaFX application thread.
+     */
+    public void start() {
+        lastPulse = 0;
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulse(now);
+            }
+        };
+        timer.start();
+    }
+
+    /**
+     * Stops following wall-clock time.
+     */
+    public void stop() {
+        if (timer != null)
+            timer.stop();
+    }
+
+    /**
+     * Retrieves current simulation time.
+     * @return time in milliseconds
+     */
+    public double getTime() {
+        return ticks * TICK;
+    }
+
+    /**
+     * Sets simulation speed with respect to wall-clock time. The value is
+     * clamped to the MIN_SCALE to MAX_SCALE range.
+     * @param _scale speed factor
+     */
+    public void setScale(double _scale) {
+        scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, _scale));
+    }
+
+    /**
+     * Retrieves simulation speed.
+     * @return speed factor
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Pauses or resumes following wall-clock time.
+     * @param _isPaused true to pause, false to resume
+     */
+    public void setPaused(boolean _isPaused) {
+        isPaused = _isPaused;
+        pendingTime = 0.0;
+    }
+
+    /**
+     * Checks whether or not the clock is paused.
+     * @return true if it is, false otherwise
+     */
+    public boolean isPaused() {
+        return isPaused;
+    }
+
+    /**
+     * Checks whether or not there are any motions in progress.
+     * @return true if there are none, false otherwise
+     */
+    public boolean isIdle() {
+        return motions.isEmpty();
+    }
+
+    /**
+     * Advances the simulation by a single frame. Intended to be used while
+     * paused.
+     */
+    public void step() {
+        advance(STEP_TICKS);
+    }
+
+    /**
+     * Animates a property from its current value to a target value. The
+     * duration is rounded to whole ticks.
+     * @param property property to animate
+     * @param target property's target value
+     * @param duration duration in milliseconds
+     * @param interpolator interpolator to use
+     * @param onFinished handler to call when the motion ends, may be null
+     */
+    public void animate(DoubleProperty property, double target, double duration,
+                        Interpolator interpolator, EventHandler<ActionEvent> onFinished) {
+        motions.add(new Motion(property, target, ticks, ticks + Math.round(duration / TICK),
+                interpolator, onFinished));
+    }
+
+    /**
+     * Advances the simulation by a given number of ticks. Motions are only
+     * evaluated at the final tick and at ticks where some motion ends, which
+     * gives the same results as evaluating every tick.
+     * @param count number of ticks
+     */
+    public void advance(long count) {
+        long target = ticks + count;
+        while (ticks < target || hasEndedMotions()) {
+            long next = target;
+            for (Motion motion : motions)
+                next = Math.min(next, motion.endTick);
+            ticks = Math.max(ticks, next);
+
+            List<Motion> finished = new ArrayList<>();
+            for (Motion motion : motions) {
+                motion.update(ticks);
+                if (motion.endTick <= ticks)
+                    finished.add(motion);
+            }
+            motions.removeAll(finished);
+            // handlers may start new motions at the current tick
+            for (Motion motion : finished)
+                if (motion.onFinished != null)
+                    motion.onFinished.handle(new ActionEvent());
+        }
+    }
+
+    /**
+     * Follows wall-clock time, called on every pulse.
+     * @param now pulse timestamp in nanoseconds
+     */
+    private void pulse(long now) {
+        double elapsed = (lastPulse == 0) ? 0.0 : (now - lastPulse) / 1e6;
+        lastPulse = now;
+        if (isPaused)
+            return;
+        pendingTime += Math.min(elapsed, MAX_PULSE_GAP) * scale;
+        long count = (long) (pendingTime / TICK);
+        pendingTime -= count * TICK;
+        advance(count);
+    }
+
+    /**
+     * Checks whether or not some motion has already reached its end tick.
+     * @return true if so, false otherwise
+     */
+    private boolean hasEndedMotions() {
+        for (Motion motion : motions)
+            if (motion.endTick <= ticks)
+                return true;
+        return false;
+    }
+
+    /**
+     * Single property animation.
+     */
+    private static class Motion {
+        DoubleProperty property;
+        double startValue, endValue;
+        long startTick, endTick;
+        Interpolator interpolator;
+        EventHandler<ActionEvent> onFinished;
+
+        Motion(DoubleProperty _property, double _endValue, long _startTick,
+               long _endTick, Interpolator _interpolator,
+               EventHandler<ActionEvent> _onFinished) {
+            property = _property;
+            startValue = property.get();
+            endValue = _endValue;
+            startTick = _startTick;
+            endTick = _endTick;
+            interpolator = _interpolator;
+            onFinished = _onFinished;
+        }
+
+        void update(long tick) {
+            // land exactly on the target, interpolation may be off by an ulp
+            if (tick >= endTick)
+                property.set(endValue);
+            else
+                property.set(interpolator.interpolate(startValue, endValue,
+                        (double) (tick - startTick) / (endTick - startTick)));
+        }
+    }
+}
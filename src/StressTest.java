@@ -0,0 +1,462 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import javafx.scene.shape.Box;
+import javafx.scene.transform.Rotate;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stress tests recording and playback with random programs. Each
+ * program is taught the way a user would - the robot is jogged one joint at
+ * a time within its bounds and, every now and then, moved close to the box
+ * to grab it and carried elsewhere to lay it down. The program is then
+ * played back without any window, the simulation clock being advanced
+ * manually, and the box is checked to end up where it did when teaching.
+ *
+ * Playback that stops advancing before the program is finished is reported
+ * as a hang, together with the program and step it happened at; runs are
+ * deterministic for a given seed, so any hang can be reproduced. Throughput,
+ * allocation rate and GC pauses of playback are reported and appended to a
+ * history file, and throughput is compared against previous runs.
+ *
+ * Usage: StressTest [--programs=N] [--steps=N] [--warmup=N] [--seed=N]
+ *                   [--history=FILE]
+ * An empty history file name disables history.
+ * @see Recorder
+ */
+public class StressTest {
+    static final int DEFAULT_PROGRAMS = 200, DEFAULT_STEPS = 1000, DEFAULT_WARMUP = 20;
+    static final String DEFAULT_HISTORY = "stress-history.csv";
+    static final String HISTORY_HEADER = "date,seed,programs,steps,steps_per_s," +
+            "bytes_per_step,gc_count,gc_ms,max_gc_pause_ms,hangs,mismatches";
+    // previous runs compared against and throughput drop reported
+    static final int TREND_RUNS = 5;
+    static final double REGRESSION_THRESHOLD = 0.1;
+    // probabilities of starting a pick or place instead of a single jog
+    static final double PICK_CHANCE = 0.05, PLACE_CHANCE = 0.1;
+    // spread of pick positions around the box, some of the grabs miss
+    static final double PICK_SPREAD = 0.1, GRAB_CLEARANCE = 0.05;
+    static final double TRAVEL_POS = 0.0, MIN_PLACE_RADIUS = 1.5, MAX_PLACE_RADIUS = 3.5;
+    // longest simulated time to advance by at once and time a single step
+    // may take beyond expected before playback is considered hung, in ticks
+    static final long MAX_ADVANCE = 60000, HANG_SLACK = 1000;
+
+    Random random;
+    Workcell workcell;
+    Robot robot;
+    Box box, floor;
+    Rotate boxRotate;
+    SimulationClock clock;
+    Recorder recorder;
+    // initial position and expected duration in milliseconds of the
+    // program being taught
+    double[] initialState;
+    double expectedDuration;
+    int programSteps;
+
+    /**
+     * Initializes a StressTest object.
+     * @param seed random seed
+     */
+    public StressTest(long seed) {
+        random = new Random(seed);
+        reset();
+    }
+
+    /**
+     * Sets up a fresh work cell.
+     */
+    private void reset() {
+        workcell = new Workcell();
+        robot = workcell.getRobot();
+        box = workcell.getBox();
+        floor = workcell.getFloor();
+        boxRotate = workcell.getBoxRotate();
+        clock = workcell.getClock();
+        recorder = workcell.getRecorder();
+    }
+
+    /**
+     * Teaches a random program starting from the current position.
+     * @param steps approximate number of steps to record
+     */
+    public void teach(int steps) {
+        initialState = robot.getJointState();
+        expectedDuration = 0.0;
+        recorder.doRecord(robot, box, boxRotate);
+        // initial position steps are played back too
+        programSteps = 4;
+        while (programSteps < steps) {
+            double chance = random.nextDouble();
+            if (!robot.isBoxGrabbed() && chance < PICK_CHANCE)
+                pick();
+            else if (robot.isBoxGrabbed() && chance < PLACE_CHANCE)
+                place();
+            else
+                jog();
+        }
+        // leave the box on the ground so that the next program starts clean
+        if (robot.isBoxGrabbed())
+            grabLaydown();
+        recorder.stopAll();
+    }
+
+    /**
+     * Moves a random joint by a random amount, within bounds.
+     */
+    private void jog() {
+        double[] state = robot.getJointState();
+        int joint = random.nextInt(4);
+        double target;
+        if (joint == 0 || joint == 2)
+            target = state[joint] + (random.nextDouble() - 0.5) * 360.0;
+        else if (joint == 1)
+            target = (random.nextDouble() * 2.0 - 1.0) * robot.maxOuterAngle;
+        else
+            target = (random.nextDouble() * 2.0 - 1.0) * robot.maxEffectorMove;
+        state[joint] = target;
+        move(state);
+    }
+
+    /**
+     * Moves the grabber close to the box and attempts to grab it.
+     */
+    private void pick() {
+        double x = box.getTranslateX() + random.nextGaussian() * PICK_SPREAD;
+        double z = box.getTranslateZ() + random.nextGaussian() * PICK_SPREAD;
+        double[] solution = robot.solvePosition(x, z, boxRotate.getAngle(), random.nextBoolean());
+        if (solution == null)
+            return;
+        double pickPos = robot.getEffectorPosAt(box.getTranslateY() -
+                box.getHeight() / 2.0 - GRAB_CLEARANCE);
+        if (move(new double[] {robot.getJointState()[0], robot.getJointState()[1],
+                robot.getJointState()[2], TRAVEL_POS}) &&
+                move(new double[] {solution[0], solution[1], solution[2], TRAVEL_POS}) &&
+                move(new double[] {solution[0], solution[1], solution[2], pickPos}))
+            grabLaydown();
+    }
+
+    /**
+     * Carries the grabbed box to a random position and lays it down.
+     */
+    private void place() {
+        double radius = MIN_PLACE_RADIUS + random.nextDouble() * (MAX_PLACE_RADIUS - MIN_PLACE_RADIUS);
+        double direction = random.nextDouble() * 2.0 * Math.PI;
+        double[] solution = robot.solvePosition(radius * Math.cos(direction),
+                radius * Math.sin(direction), random.nextDouble() * 360.0, random.nextBoolean());
+        if (solution == null)
+            return;
+        if (move(new double[] {robot.getJointState()[0], robot.getJointState()[1],
+                robot.getJointState()[2], TRAVEL_POS}) &&
+                move(new double[] {solution[0], solution[1], solution[2], TRAVEL_POS}))
+            grabLaydown();
+    }
+
+    /**
+     * Moves the robot to a given position one joint at a time, recording a
+     * step for each joint moved. Moves ending in an illegal position are
+     * reverted, just like when jogging manually.
+     * @param target target inner angle, outer angle, effector angle and
+     *               effector position
+     * @return true if the position was reached, false otherwise
+     */
+    private boolean move(double[] target) {
+        double[] state = robot.getJointState();
+        for (int joint = 0; joint < 4; joint++) {
+            if (state[joint] == target[joint])
+                continue;
+            double from = state[joint];
+            state[joint] = target[joint];
+            robot.setJointState(state[0], state[1], state[2], state[3]);
+            if (!robot.isPositionLegal(box, floor)) {
+                state[joint] = from;
+                robot.setJointState(state[0], state[1], state[2], state[3]);
+                return false;
+            }
+            recorder.addPos((joint == 0) ? robot.innerAngleProperty() :
+                    (joint == 1) ? robot.outerAngleProperty() :
+                    (joint == 2) ? robot.effectorAngleProperty() : robot.effectorPosProperty());
+            expectedDuration += Recorder.getStepDuration(joint != 3, target[joint] - from);
+            programSteps++;
+        }
+        return true;
+    }
+
+    /**
+     * Attempts to grab or lay down the box, recording the attempt and waiting
+     * for the box to fall if laid down.
+     */
+    private void grabLaydown() {
+        if (robot.isBoxGrabbed())
+            expectedDuration += robot.getFallDuration();
+        robot.attemptGrabLaydown(box, boxRotate, floor, null);
+        while (!clock.isIdle())
+            clock.advance(MAX_ADVANCE);
+        recorder.addPos(null);
+        programSteps++;
+    }
+
+    /**
+     * Plays the taught program back to the end.
+     * @return true if playback finished, false if it hung
+     */
+    public boolean play() {
+        // playback starts with a move back to the initial position
+        double duration = expectedDuration;
+        double[] state = robot.getJointState();
+        for (int joint = 0; joint < 4; joint++)
+            duration += Recorder.getStepDuration(joint != 3, initialState[joint] - state[joint]);
+        // generous bound - every step may be rounded to whole ticks
+        double deadline = clock.getTime() + duration + HANG_SLACK * SimulationClock.TICK +
+                programSteps * SimulationClock.TICK;
+        recorder.doPlay(robot, box, boxRotate, floor);
+        while (recorder.isPlaying()) {
+            if (clock.isIdle() || clock.getTime() > deadline)
+                return false;
+            clock.advance(MAX_ADVANCE);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the stress test and prints the results.
+     * @param programs number of measured programs
+     * @param steps maximum steps per program
+     * @param warmup number of programs run before measuring
+     * @param seed random seed
+     * @param history file to append results to, null not to keep history
+     * @return true if there were no hangs nor mismatches, false otherwise
+     * @throws IOException if the history file can't be read or written
+     */
+    public boolean run(int programs, int steps, int warmup, long seed,
+                       File history) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        final AtomicLong maxPause = new AtomicLong();
+        NotificationListener gcListener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (!notification.getType().equals(
+                        GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                    return;
+                long duration = GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData()).getGcInfo().getDuration();
+                while (true) {
+                    long max = maxPause.get();
+                    if (duration <= max || maxPause.compareAndSet(max, duration))
+                        break;
+                }
+            }
+        };
+
+        long playedSteps = 0, playTime = 0, allocated = 0, gcCount = 0, gcTime = 0;
+        int hangs = 0, mismatches = 0;
+        for (int program = -warmup; program < programs; program++) {
+            boolean isMeasured = program >= 0;
+            if (program == 0) {
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    gcCount -= gc.getCollectionCount();
+                    gcTime -= gc.getCollectionTime();
+                    if (gc instanceof NotificationEmitter)
+                        ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+                }
+            }
+
+            teach(steps / 10 + random.nextInt(steps - steps / 10 + 1));
+            double[] taughtBox = {box.getTranslateX(), box.getTranslateZ(),
+                    boxRotate.getAngle(), box.isVisible() ? 1.0 : 0.0};
+
+            long allocatedBefore = getAllocatedBytes(threads, threadId);
+            long startTime = System.nanoTime();
+            boolean isFinished = play();
+            long endTime = System.nanoTime();
+            long allocatedAfter = getAllocatedBytes(threads, threadId);
+
+            if (!isFinished) {
+                hangs++;
+                System.out.printf("Hang in program %d (seed %d) at step %d of %d, %.0f ms%n",
+                        program, seed, recorder.getPlayedSteps(), programSteps, clock.getTime());
+                recorder.abortAll();
+                reset();
+                continue;
+            }
+            if (taughtBox[0] != box.getTranslateX() || taughtBox[1] != box.getTranslateZ() ||
+                    taughtBox[2] != boxRotate.getAngle() ||
+                    taughtBox[3] != (box.isVisible() ? 1.0 : 0.0)) {
+                mismatches++;
+                System.out.printf("Box position mismatch after program %d (seed %d)%n",
+                        program, seed);
+            }
+            if (isMeasured) {
+                playedSteps += recorder.getPlayedSteps();
+                playTime += endTime - startTime;
+                allocated += allocatedAfter - allocatedBefore;
+            }
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+            if (gc instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+                } catch (Exception e) {
+                    // never added, the collector was created during the run
+                }
+            }
+        }
+
+        double stepsPerSecond = playedSteps / (playTime / 1e9);
+        double bytesPerStep = (allocated < 0) ? -1.0 : (double) allocated / playedSteps;
+        System.out.printf("Played %d programs, %d steps in %.2f s: %.0f steps/s%n",
+                programs, playedSteps, playTime / 1e9, stepsPerSecond);
+        if (bytesPerStep < 0)
+            System.out.println("Allocation: not supported by this JVM");
+        else
+            System.out.printf("Allocation: %.0f bytes/step, %.1f MB/s%n", bytesPerStep,
+                    allocated / (playTime / 1e9) / (1 << 20));
+        System.out.printf("GC: %d collections, %d ms total, longest pause %d ms%n",
+                gcCount, gcTime, maxPause.get());
+        System.out.printf("Hangs: %d, box position mismatches: %d%n", hangs, mismatches);
+
+        if (history != null) {
+            reportTrend(history, seed, programs, steps, stepsPerSecond);
+            appendHistory(history, String.format(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.1f,%d,%d,%d,%d,%d",
+                    new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()), seed,
+                    programs, steps, stepsPerSecond, bytesPerStep, gcCount, gcTime,
+                    maxPause.get(), hangs, mismatches));
+        }
+        return hangs == 0 && mismatches == 0;
+    }
+
+    /**
+     * Retrieves the number of bytes allocated by a thread so far.
+     * @param threads thread management bean
+     * @param threadId thread ID
+     * @return allocated bytes, -1 if not supported
+     */
+    private static long getAllocatedBytes(ThreadMXBean threads, long threadId) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Compares throughput against the last few runs with the same settings
+     * in the history file.
+     * @param history history file
+     * @param seed random seed
+     * @param programs number of measured programs
+     * @param steps maximum steps per program
+     * @param stepsPerSecond throughput of this run
+     * @throws IOException if reading fails
+     */
+    private static void reportTrend(File history, long seed, int programs, int steps,
+                                    double stepsPerSecond) throws IOException {
+        if (!history.exists())
+            return;
+        List<Double> previous = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(history))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (line.equals(HISTORY_HEADER) || fields.length < 5 ||
+                        !fields[1].equals("" + seed) || !fields[2].equals("" + programs) ||
+                        !fields[3].equals("" + steps))
+                    continue;
+                try {
+                    previous.add(Double.parseDouble(fields[4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed history line: " + line, e);
+                }
+            }
+        }
+        if (previous.isEmpty())
+            return;
+        List<Double> recent = previous.subList(Math.max(0, previous.size() - TREND_RUNS),
+                previous.size());
+        double mean = 0.0;
+        for (double value : recent)
+            mean += value / recent.size();
+        double change = stepsPerSecond / mean - 1.0;
+        System.out.printf("Throughput trend: %+.1f%% against the mean of the last %d runs%n",
+                change * 100.0, recent.size());
+        if (change < -REGRESSION_THRESHOLD)
+            System.out.println("Throughput regression");
+    }
+
+    /**
+     * Appends a line to the history file, writing the header first if the
+     * file is new.
+     * @param history history file
+     * @param line line to append
+     * @throws IOException if writing fails
+     */
+    private static void appendHistory(File history, String line) throws IOException {
+        boolean isNew = !history.exists() || history.length() == 0;
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(history, true)))) {
+            if (isNew)
+                out.println(HISTORY_HEADER);
+            out.println(line);
+            if (out.checkError())
+                throw new IOException("Failed to write " + history);
+        }
+    }
+
+    /**
+     * Retrieves an optional parameter of the form --name=value.
+     * @param args the command line arguments
+     * @param name parameter name
+     * @param defaultValue value to use if the parameter wasn't given
+     * @return parameter value
+     */
+    private static String getParameter(String[] args, String name, String defaultValue) {
+        for (String arg : args)
+            if (arg.startsWith("--" + name + "="))
+                return arg.substring(name.length() + 3);
+        return defaultValue;
+    }
+
+    /**
+     * Runs the stress test, exits with a non-zero status on hangs or
+     * mismatches.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        int programs, steps, warmup;
+        long seed;
+        String history;
+        try {
+            programs = Integer.parseInt(getParameter(args, "programs", "" + DEFAULT_PROGRAMS));
+            steps = Integer.parseInt(getParameter(args, "steps", "" + DEFAULT_STEPS));
+            warmup = Integer.parseInt(getParameter(args, "warmup", "" + DEFAULT_WARMUP));
+            seed = Long.parseLong(getParameter(args, "seed", "0"));
+            history = getParameter(args, "history", DEFAULT_HISTORY);
+        } catch (NumberFormatException e) {
+            programs = steps = -1;
+            seed = 0;
+            warmup = 0;
+            history = null;
+        }
+        if (programs < 1 || steps < 1 || warmup < 0) {
+            System.err.println("Usage: StressTest [--programs=N] [--steps=N] [--warmup=N] " +
+                    "[--seed=N] [--history=FILE]");
+            System.exit(2);
+        }
+        try {
+            boolean isPassed = new StressTest(seed).run(programs, steps, warmup, seed,
+                    history.isEmpty() ? null : new File(history));
+            System.exit(isPassed ? 0 : 1);
+        } catch (IOException e) {
+            System.err.println("Stress test failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This class holds a single telemetry frame. It's meant to be reused by
+ * readers, so that reading frames doesn't allocate.
+ * @see TelemetryReader
+ */
+public class TelemetryFrame {
+    long frame, time;
+    double innerAngle, outerAngle, effectorAngle, effectorPos;
+    boolean boxGrabbed, boxVisible;
+    double boxX, boxY, boxZ, boxAngle;
+
+    /**
+     * Retrieves frame number, starting from 1.
+     * @return frame number
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * Retrieves frame timestamp.
+     * @return timestamp in nanoseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Retrieves inner arm angle.
+     * @return angle in degrees
+     */
+    public double getInnerAngle() {
+        return innerAngle;
+    }
+
+    /**
+     * Retrieves outer arm angle.
+     * @return angle in degrees
+     */
+    public double getOuterAngle() {
+        return outerAngle;
+    }
+
+    /**
+     * Retrieves effector angle.
+     * @return angle in degrees
+     */
+    public double getEffectorAngle() {
+        return effectorAngle;
+    }
+
+    /**
+     * Retrieves effector position.
+     * @return position
+     */
+    public double getEffectorPos() {
+        return effectorPos;
+    }
+
+    /**
+     * Checks whether or not the box was grabbed.
+     * @return true if it was, false otherwise
+     */
+    public boolean isBoxGrabbed() {
+        return boxGrabbed;
+    }
+
+    /**
+     * Checks whether or not the box was visible on the ground.
+     * @return true if it was, false otherwise
+     */
+    public boolean isBoxVisible() {
+        return boxVisible;
+    }
+
+    /**
+     * Retrieves box X coordinate.
+     * @return X coordinate
+     */
+    public double getBoxX() {
+        return boxX;
+    }
+
+    /**
+     * Retrieves box Y coordinate.
+     * @return Y coordinate
+     */
+    public double getBoxY() {
+        return boxY;
+    }
+
+    /**
+     * Retrieves box Z coordinate.
+     * @return Z coordinate
+     */
+    public double getBoxZ() {
+        return boxZ;
+    }
+
+    /**
+     * Retrieves box rotation angle.
+     * @return angle in degrees
+     */
+    public double getBoxAngle() {
+        return boxAngle;
+    }
+
+    @Override
+    public String toString() {
+        return frame + " " + time + " " + innerAngle + " " + outerAngle + " " +
+                effectorAngle + " " + effectorPos + " " + boxGrabbed + " " +
+                boxVisible + " " + boxX + " " + boxY + " " + boxZ + " " + boxAngle;
+    }
+}
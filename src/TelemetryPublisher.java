@@ -0,0 +1,120 @@
+import javafx.scene.shape.Box;
+import javafx.scene.transform.Rotate;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import sun.misc.Unsafe;
+
+/**
+ * This class publishes robot state into a memory-mapped ring buffer, to be
+ * read by any number of other processes. There must be only one publisher
+ * per file. Publishing a frame is just a couple of stores into the mapped
+ * file, so it's cheap enough to be done on every pulse.
+ *
+ * The file starts with a HEADER_SIZE byte header (magic, version, slot
+ * count, slot size, frame count) followed by SLOT_SIZE byte slots. Each
+ * slot starts with the number of the frame it holds, which is zeroed
+ * while the slot is being written, so that readers can detect torn frames.
+ * Stores to the slot are ordered by explicit store fences - a volatile
+ * field orders nothing around buffer stores, and even less so for readers
+ * in other processes. All values are little-endian.
+ * @see TelemetryReader
+ */
+public class TelemetryPublisher implements Closeable {
+    static final int MAGIC = 0x54524353, VERSION = 1;
+    static final int HEADER_SIZE = 64, SLOT_SIZE = 96;
+    // header offsets
+    static final int SLOT_COUNT_OFFSET = 8, SLOT_SIZE_OFFSET = 12, FRAME_COUNT_OFFSET = 16;
+    // slot offsets
+    static final int FRAME_OFFSET = 0, TIME_OFFSET = 8, JOINTS_OFFSET = 16,
+            GRABBED_OFFSET = 48, VISIBLE_OFFSET = 52, BOX_OFFSET = 56;
+    // memory fences, shared with readers
+    static final Unsafe UNSAFE = getUnsafe();
+
+    RandomAccessFile file;
+    MappedByteBuffer buffer;
+    int slotCount;
+    long frameCount;
+
+    /**
+     * Creates or overwrites a telemetry file and maps it into memory.
+     * @param path file to publish to
+     * @param _slotCount number of frames kept in the ring buffer
+     * @throws IOException if the file can't be created
+     */
+    public TelemetryPublisher(File path, int _slotCount) throws IOException {
+        slotCount = _slotCount;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) SLOT_SIZE * slotCount);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+        buffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+        buffer.putLong(FRAME_COUNT_OFFSET, 0);
+        frameCount = 0;
+    }
+
+    /**
+     * Publishes a single frame.
+     * @param time frame timestamp in nanoseconds
+     * @param robot robot
+     * @param box interactive box
+     * @param boxRotate interactive box's rotate transform
+     */
+    public void publish(long time, Robot robot, Box box, Rotate boxRotate) {
+        long frame = frameCount + 1;
+        int slot = HEADER_SIZE + (int) (frameCount % slotCount) * SLOT_SIZE;
+
+        buffer.putLong(slot + FRAME_OFFSET, 0);
+        UNSAFE.storeFence();
+        buffer.putLong(slot + TIME_OFFSET, time);
+        buffer.putDouble(slot + JOINTS_OFFSET, robot.innerAngleProperty().get());
+        buffer.putDouble(slot + JOINTS_OFFSET + 8, robot.outerAngleProperty().get());
+        buffer.putDouble(slot + JOINTS_OFFSET + 16, robot.effectorAngleProperty().get());
+        buffer.putDouble(slot + JOINTS_OFFSET + 24, robot.effectorPosProperty().get());
+        buffer.putInt(slot + GRABBED_OFFSET, robot.isBoxGrabbed() ? 1 : 0);
+        buffer.putInt(slot + VISIBLE_OFFSET, box.isVisible() ? 1 : 0);
+        buffer.putDouble(slot + BOX_OFFSET, box.getTranslateX());
+        buffer.putDouble(slot + BOX_OFFSET + 8, box.getTranslateY());
+        buffer.putDouble(slot + BOX_OFFSET + 16, box.getTranslateZ());
+        buffer.putDouble(slot + BOX_OFFSET + 24, boxRotate.getAngle());
+        UNSAFE.storeFence();
+        buffer.putLong(slot + FRAME_OFFSET, frame);
+        UNSAFE.storeFence();
+        buffer.putLong(FRAME_COUNT_OFFSET, frame);
+
+        frameCount = frame;
+    }
+
+    /**
+     * Retrieves the Unsafe instance, which provides memory fences.
+     * @return Unsafe instance
+     */
+    private static Unsafe getUnsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Closes the telemetry file. Frames already published stay readable.
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads robot state published by a TelemetryPublisher, possibly
+ * from another process. Each reader keeps its own position in the ring
+ * buffer; frames overwritten before the reader gets to them are skipped and
+ * counted as dropped.
+ * @see TelemetryPublisher
+ */
+public class TelemetryReader implements Closeable {
+    RandomAccessFile file;
+    MappedByteBuffer buffer;
+    int slotCount;
+    long lastFrame, droppedFrames;
+
+    /**
+     * Opens and maps a telemetry file. Reading starts from the oldest frame
+     * still kept in the ring buffer.
+     * @param path file to read from
+     * @throws IOException if the file can't be opened or isn't a telemetry file
+     */
+    public TelemetryReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < TelemetryPublisher.HEADER_SIZE ||
+                buffer.getInt(0) != TelemetryPublisher.MAGIC ||
+                buffer.getInt(4) != TelemetryPublisher.VERSION ||
+                buffer.getInt(TelemetryPublisher.SLOT_SIZE_OFFSET) != TelemetryPublisher.SLOT_SIZE) {
+            file.close();
+            throw new IOException("Not a telemetry file: " + path);
+        }
+        slotCount = buffer.getInt(TelemetryPublisher.SLOT_COUNT_OFFSET);
+        lastFrame = Math.max(0, getPublishedFrames() - slotCount);
+        droppedFrames = 0;
+    }
+
+    /**
+     * Retrieves the number of frames published so far.
+     * @return frame count
+     */
+    public long getPublishedFrames() {
+        return buffer.getLong(TelemetryPublisher.FRAME_COUNT_OFFSET);
+    }
+
+    /**
+     * Retrieves the number of frames this reader has missed because they
+     * were overwritten before being read.
+     * @return dropped frame count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Reads the next frame, if there is one.
+     * @param frame frame object to fill
+     * @return true if a frame was read, false if there are no new frames
+     */
+    public boolean next(TelemetryFrame frame) {
+        while (true) {
+            long published = getPublishedFrames();
+            if (lastFrame >= published)
+                return false;
+            // skip frames which have already been overwritten
+            if (published - lastFrame > slotCount) {
+                droppedFrames += published - slotCount - lastFrame;
+                lastFrame = published - slotCount;
+            }
+            long wanted = lastFrame + 1;
+            lastFrame = wanted;
+            if (read(wanted, frame))
+                return true;
+            droppedFrames++;
+        }
+    }
+
+    /**
+     * Reads the most recently published frame, without changing the position
+     * used by next.
+     * @param frame frame object to fill
+     * @return true if a frame was read, false if nothing was published yet
+     */
+    public boolean latest(TelemetryFrame frame) {
+        long published;
+        do {
+            published = getPublishedFrames();
+            if (published == 0)
+                return false;
+        } while (!read(published, frame));
+        return true;
+    }
+
+    /**
+     * Closes the telemetry file.
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads a single frame from its slot.
+     * @param wanted frame number to read
+     * @param frame frame object to fill
+     * @return true if the frame was read whole, false if its slot was being
+     *         or has been overwritten
+     */
+    private boolean read(long wanted, TelemetryFrame frame) {
+        int slot = TelemetryPublisher.HEADER_SIZE +
+                (int) ((wanted - 1) % slotCount) * TelemetryPublisher.SLOT_SIZE;
+        // load fences keep frame count, frame number and data loads in
+        // order, mirroring the publisher's store fences
+        TelemetryPublisher.UNSAFE.loadFence();
+        if (buffer.getLong(slot + TelemetryPublisher.FRAME_OFFSET) != wanted)
+            return false;
+        TelemetryPublisher.UNSAFE.loadFence();
+        int joints = slot + TelemetryPublisher.JOINTS_OFFSET, box = slot + TelemetryPublisher.BOX_OFFSET;
+        frame.time = buffer.getLong(slot + TelemetryPublisher.TIME_OFFSET);
+        frame.innerAngle = buffer.getDouble(joints);
+        frame.outerAngle = buffer.getDouble(joints + 8);
+        frame.effectorAngle = buffer.getDouble(joints + 16);
+        frame.effectorPos = buffer.getDouble(joints + 24);
+        frame.boxGrabbed = buffer.getInt(slot + TelemetryPublisher.GRABBED_OFFSET) != 0;
+        frame.boxVisible = buffer.getInt(slot + TelemetryPublisher.VISIBLE_OFFSET) != 0;
+        frame.boxX = buffer.getDouble(box);
+        frame.boxY = buffer.getDouble(box + 8);
+        frame.boxZ = buffer.getDouble(box + 16);
+        frame.boxAngle = buffer.getDouble(box + 24);
+        TelemetryPublisher.UNSAFE.loadFence();
+        frame.frame = wanted;
+        return buffer.getLong(slot + TelemetryPublisher.FRAME_OFFSET) == wanted;
+    }
+
+    /**
+     * Simple local consumer - prints frames from a telemetry file as they
+     * are published.
+     * @param args telemetry file path
+     * @throws Exception if reading fails
+     */
+    public static void main(String[] args) throws Exception {
+        try (TelemetryReader reader = new TelemetryReader(new File(args[0]))) {
+            TelemetryFrame frame = new TelemetryFrame();
+            while (true) {
+                if (reader.next(frame))
+                    System.out.println(frame);
+                else
+                    Thread.sleep(1);
+            }
+        }
+    }
+}
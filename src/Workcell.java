@@ -0,0 +1,160 @@
+import javafx.scene.*;
+import javafx.scene.paint.*;
+import javafx.scene.shape.*;
+import javafx.scene.transform.*;
+
+/**
+ * This class sets up the simulated work cell - the robot, the floor, the
+ * interactive box, camera and lights, together with the simulation clock
+ * and recorder driving them. It's shared by the interactive application and
+ * tools running without a window.
+ */
+public class Workcell extends Group {
+    SimulationClock clock;
+    Recorder recorder;
+    Robot robot;
+    Box box, floor;
+    Rotate boxRotate, cameraXRotate, cameraYRotate;
+    Translate cameraTranslate;
+    Camera camera;
+
+    /**
+     * Constructs a Workcell object with the default robot and box setup.
+     */
+    public Workcell() {
+        super();
+        // robot
+        robot = new Robot(1.0, 0.25, 2.0, 1.5, 1.25, 0.25, 0.5, 0.125, 2.0,
+                0.675, 0.175, 120, 0.5, Color.DARKGRAY, Color.GREY);
+
+        // simulation clock and recorder
+        clock = new SimulationClock();
+        robot.setClock(clock);
+        recorder = new Recorder(clock);
+
+        // floor
+        floor = new Box(8.0, 0.1, 8.0);
+        floor.setMaterial(MaterialCache.get(Color.WHITE));
+        floor.setDrawMode(DrawMode.FILL);
+        floor.setTranslateY(0.1);
+
+        // interactive box
+        box = new Box(0.675, 0.675, 0.675);
+        box.setMaterial(MaterialCache.get(Color.BLUE));
+        box.setDrawMode(DrawMode.FILL);
+        box.setTranslateX(2.75);
+        box.setTranslateY(-0.25);
+        boxRotate = new Rotate(0, Rotate.Y_AXIS);
+        box.getTransforms().add(boxRotate);
+
+        // camera setup
+        camera = new PerspectiveCamera(true);
+        cameraYRotate = new Rotate(-45.0, Rotate.Y_AXIS);
+        cameraXRotate = new Rotate(-30.0, Rotate.X_AXIS);
+        cameraTranslate = new Translate(0.0, 0.0, -15.0);
+        camera.getTransforms().addAll(cameraYRotate, cameraXRotate, cameraTranslate);
+
+        // lights
+        PointLight pLight = new PointLight(Color.WHITE);
+        pLight.setTranslateX(50);
+        pLight.setTranslateY(-300);
+        pLight.setTranslateZ(-400);
+        AmbientLight aLight = new AmbientLight(Color.color(0.3, 0.3, 0.3));
+
+        getChildren().addAll(camera, robot, floor, box, pLight, aLight);
+    }
+
+    /**
+     * Creates a SubScene viewing the work cell through its camera.
+     * @param width SubScene width
+     * @param height SubScene height
+     * @param antiAliasing anti-aliasing mode
+     * @return SubScene object
+     */
+    public SubScene createSubScene(double width, double height,
+                                   SceneAntialiasing antiAliasing) {
+        SubScene subScene = new SubScene(this, width, height, true, antiAliasing);
+        subScene.setCamera(camera);
+        return subScene;
+    }
+
+    /**
+     * Retrieves the simulation clock.
+     * @return simulation clock
+     */
+    public SimulationClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Retrieves the recorder.
+     * @return recorder
+     */
+    public Recorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Retrieves the robot.
+     * @return robot
+     */
+    public Robot getRobot() {
+        return robot;
+    }
+
+    /**
+     * Retrieves the interactive box.
+     * @return interactive box
+     */
+    public Box getBox() {
+        return box;
+    }
+
+    /**
+     * Retrieves the interactive box's rotate transform.
+     * @return rotate transform
+     */
+    public Rotate getBoxRotate() {
+        return boxRotate;
+    }
+
+    /**
+     * Retrieves the floor.
+     * @return floor
+     */
+    public Box getFloor() {
+        return floor;
+    }
+
+    /**
+     * Retrieves the camera.
+     * @return camera
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Retrieves the camera's rotate transform around the X-axis.
+     * @return rotate transform
+     */
+    public Rotate getCameraXRotate() {
+        return cameraXRotate;
+    }
+
+    /**
+     * Retrieves the camera's rotate transform around the Y-axis.
+     * @return rotate transform
+     */
+    public Rotate getCameraYRotate() {
+        return cameraYRotate;
+    }
+
+    /**
+     * Retrieves the camera's translate transform.
+     * @return translate transform
+     */
+    public Translate getCameraTranslate() {
+        return cameraTranslate;
+    }
+}